@@ -0,0 +1,223 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded dictionary of campaign values (source, medium, name, tracking id)
+ * Parsed values are resolved to a shared instance so buffered hits don't retain
+ * thousands of copies of "batch", "push" or the same campaign name.
+ * Lookups are lock-free. When the dictionary is full, a value that wasn't read recently
+ * is evicted using the clock algorithm, in amortized constant time.
+ * See : https://en.wikipedia.org/wiki/Page_replacement_algorithm#Clock
+ */
+final class CampaignValueDictionary implements MemoryConsumer {
+
+    /**
+     * Default maximum number of distinct values kept
+     */
+    static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Estimated size of a String instance on the heap, excluding its characters
+     */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    /**
+     * Estimated size of an entry and its map node, excluding the value
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 56;
+
+    /**
+     * Values deeplinks and custom payloads commonly repeat as campaign source or medium
+     */
+    private static final String[] WELL_KNOWN_VALUES = {"batch", "push", "in-app"};
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the clock: the slots, the free slots and the hand
+     */
+    private final Object evictionLock = new Object();
+    private final Entry[] slots;
+    private final int[] freeSlots;
+    private int freeSlotCount;
+    private int hand = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong footprintBytes = new AtomicLong();
+
+    private final int capacity;
+
+    CampaignValueDictionary(int capacity) {
+        this.capacity = Math.max(capacity, WELL_KNOWN_VALUES.length);
+        this.slots = new Entry[this.capacity];
+        this.freeSlots = new int[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            // Popped from the end, so slots are used in order
+            freeSlots[i] = this.capacity - 1 - i;
+        }
+        this.freeSlotCount = this.capacity;
+        for (String value : WELL_KNOWN_VALUES) {
+            add(value);
+        }
+    }
+
+    /**
+     * Resolve a value to its shared instance
+     *
+     * @param value The parsed value
+     * @return The shared instance equal to value, or null if value is null
+     */
+    @Nullable
+    String resolve(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+
+        Entry entry = entries.get(value);
+        if (entry != null) {
+            if (!entry.referenced) {
+                // Only written when cleared by the clock, to keep hot entries read-only
+                entry.referenced = true;
+            }
+            hitCount.incrementAndGet();
+            if (entry.value != value) {
+                savedBytes.addAndGet(estimateSize(value));
+            }
+            return entry.value;
+        }
+
+        missCount.incrementAndGet();
+        return add(value);
+    }
+
+    /**
+     * @return Ratio of resolved values that were already in the dictionary, between 0 and 1
+     */
+    double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return Estimated number of bytes that would have been retained by duplicate values
+     */
+    long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return A snapshot of the dictionary statistics
+     */
+    @NonNull
+    CampaignValueStats getStats() {
+        return new CampaignValueStats(getHitCount(), getMissCount(), getSavedBytes(), size());
+    }
+
+    @Override
+    public long getFootprintBytes() {
+        return footprintBytes.get();
+    }
+
+    /**
+     * Evict values that weren't read recently until the footprint is at most maxBytes
+     * Evicted values are still valid in hits already built, they just stop being shared.
+     */
+    @Override
+    public void shrink(long maxBytes) {
+        synchronized (evictionLock) {
+            while (footprintBytes.get() > maxBytes && evict()) {
+                // Evict until the footprint fits
+            }
+        }
+    }
+
+    private String add(String value) {
+        synchronized (evictionLock) {
+            Entry existing = entries.get(value);
+            if (existing != null) {
+                // Added by another thread since the lock-free lookup
+                return existing.value;
+            }
+            if (freeSlotCount == 0) {
+                evict();
+            }
+            Entry entry = new Entry(value, freeSlots[--freeSlotCount]);
+            slots[entry.slot] = entry;
+            entries.put(value, entry);
+            footprintBytes.addAndGet(estimateEntrySize(value));
+            return value;
+        }
+    }
+
+    /**
+     * Advance the clock hand to the first entry that wasn't read since the last pass and evict it
+     * Must be called while holding the eviction lock
+     *
+     * @return false if the dictionary was empty
+     */
+    private boolean evict() {
+        if (freeSlotCount == capacity) {
+            return false;
+        }
+        while (true) {
+            Entry candidate = slots[hand];
+            int slot = hand;
+            hand = (hand + 1) % capacity;
+            if (candidate == null) {
+                continue;
+            }
+            if (candidate.referenced) {
+                // Second chance
+                candidate.referenced = false;
+                continue;
+            }
+            slots[slot] = null;
+            freeSlots[freeSlotCount++] = slot;
+            entries.remove(candidate.value);
+            footprintBytes.addAndGet(-estimateEntrySize(candidate.value));
+            return true;
+        }
+    }
+
+    private static long estimateSize(String value) {
+        return STRING_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    private static long estimateEntrySize(String value) {
+        return ENTRY_OVERHEAD_BYTES + estimateSize(value);
+    }
+
+    private static final class Entry {
+
+        final String value;
+        final int slot;
+        volatile boolean referenced;
+
+        Entry(String value, int slot) {
+            this.value = value;
+            this.slot = slot;
+            this.referenced = false;
+        }
+    }
+
+}
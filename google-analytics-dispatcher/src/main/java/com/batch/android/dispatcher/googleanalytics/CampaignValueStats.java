@@ -0,0 +1,67 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+/**
+ * Statistics of the dictionary sharing campaign values between hits
+ * See {@link GoogleAnalyticsDispatcher#getCampaignValueStats(android.content.Context)}
+ */
+public final class CampaignValueStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long savedBytes;
+    private final int size;
+
+    CampaignValueStats(long hitCount, long missCount, long savedBytes, int size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.savedBytes = savedBytes;
+        this.size = size;
+    }
+
+    /**
+     * @return Number of campaign values that were already in the dictionary
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Number of campaign values added to the dictionary
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Ratio of campaign values that were already in the dictionary, between 0 and 1
+     */
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return Estimated number of bytes that would have been retained by duplicate values
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return Number of distinct values currently kept
+     */
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "CampaignValueStats{" +
+                "hitRate=" + getHitRate() +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", savedBytes=" + savedBytes +
+                ", size=" + size +
+                '}';
+    }
+}
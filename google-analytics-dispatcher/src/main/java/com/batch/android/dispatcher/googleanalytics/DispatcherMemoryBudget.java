@@ -0,0 +1,144 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Memory budget shared by the dispatcher caches and buffers
+ * When the system asks to trim memory, caches are shrunk first, then buffers.
+ * When the footprint goes over budget, buffers are shrunk down to a low-water mark so the next hits
+ * don't go over again right away. Caches are left alone unless they don't fit on their own:
+ * evicting values that the next hits look up again would cost more than it saves.
+ * See : https://developer.android.com/reference/android/content/ComponentCallbacks2
+ */
+final class DispatcherMemoryBudget {
+
+    /**
+     * Default budget, small enough for low RAM devices
+     */
+    static final long DEFAULT_BUDGET_BYTES = 64 * 1024;
+
+    /**
+     * Share of the budget left after going over it
+     */
+    static final int LOW_WATER_PERCENT = 75;
+
+    private final List<MemoryConsumer> caches = new CopyOnWriteArrayList<>();
+    private final List<MemoryConsumer> buffers = new CopyOnWriteArrayList<>();
+    private volatile long budgetBytes;
+
+    DispatcherMemoryBudget(long budgetBytes) {
+        this.budgetBytes = Math.max(budgetBytes, 0);
+    }
+
+    /**
+     * Account for a cache, cheap to rebuild but looked up on every hit
+     */
+    void registerCache(@NonNull MemoryConsumer consumer) {
+        caches.add(consumer);
+    }
+
+    /**
+     * Account for a buffer, shrunk after the ones already registered
+     */
+    void register(@NonNull MemoryConsumer consumer) {
+        buffers.add(consumer);
+    }
+
+    void unregister(@NonNull MemoryConsumer consumer) {
+        caches.remove(consumer);
+        buffers.remove(consumer);
+    }
+
+    void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = Math.max(budgetBytes, 0);
+        enforce();
+    }
+
+    long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return Estimated number of bytes retained by every consumer
+     */
+    long getFootprintBytes() {
+        return getFootprintBytes(caches) + getFootprintBytes(buffers);
+    }
+
+    /**
+     * Shrink consumers if the footprint went over budget
+     */
+    void enforce() {
+        long budget = budgetBytes;
+        if (getFootprintBytes() <= budget) {
+            return;
+        }
+        long lowWaterBytes = budget * LOW_WATER_PERCENT / 100;
+        trimTo(buffers, lowWaterBytes);
+        if (getFootprintBytes() > budget) {
+            trimTo(caches, lowWaterBytes);
+        }
+    }
+
+    void onTrimMemory(int level) {
+        trimTo(getTargetBytes(level));
+    }
+
+    void onLowMemory() {
+        trimTo(0);
+    }
+
+    /**
+     * @return Footprint allowed after a trim signal of the given level
+     */
+    long getTargetBytes(int level) {
+        long budget = budgetBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // The process is on the list of processes to kill
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return budget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return budget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return budget / 2;
+        }
+        return budget;
+    }
+
+    private void trimTo(long targetBytes) {
+        trimTo(caches, targetBytes);
+        trimTo(buffers, targetBytes);
+    }
+
+    /**
+     * Shrink consumers, in the order they were registered, until the whole footprint is at most targetBytes
+     */
+    private void trimTo(List<MemoryConsumer> consumers, long targetBytes) {
+        long excess = getFootprintBytes() - targetBytes;
+        for (MemoryConsumer consumer : consumers) {
+            if (excess <= 0) {
+                return;
+            }
+            long before = consumer.getFootprintBytes();
+            consumer.shrink(Math.max(before - excess, 0));
+            excess -= before - consumer.getFootprintBytes();
+        }
+    }
+
+    private static long getFootprintBytes(List<MemoryConsumer> consumers) {
+        long footprint = 0;
+        for (MemoryConsumer consumer : consumers) {
+            footprint += consumer.getFootprintBytes();
+        }
+        return footprint;
+    }
+
+}
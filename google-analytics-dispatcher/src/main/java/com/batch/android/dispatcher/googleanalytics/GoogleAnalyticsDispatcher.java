@@ -1,19 +1,30 @@
 package com.batch.android.dispatcher.googleanalytics;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.net.Uri;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.XmlRes;
 
 import com.batch.android.Batch;
 import com.batch.android.BatchEventDispatcher;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
 import com.google.android.gms.analytics.GoogleAnalytics;
 import com.google.android.gms.analytics.Tracker;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Google Analytics Event Dispatcher
@@ -32,6 +43,16 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
     private static final String UTM_MEDIUM = "utm_medium";
     private static final String UTM_CONTENT = "utm_content";
 
+    /**
+     * Google Analytics client id key
+     */
+    private static final String CLIENT_ID = "&cid";
+
+    /**
+     * Deeplink used to warm up the attribution code paths, with both query and fragment UTM tags
+     */
+    private static final String WARM_UP_DEEPLINK = "https://batch.com?utm_source=batch&utm_medium=push#utm_source=batch&utm_medium=push";
+
     /**
      * Event name used when logging on Google Analytics
      */
@@ -44,12 +65,66 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
     private static final String MESSAGING_CLICK_NAME = "batch_in_app_click";
     private static final String UNKNOWN_EVENT_NAME = "batch_unknown";
 
-    private GoogleAnalytics googleAnalytics;
-    private Tracker tracker;
+    /**
+     * File where pending hits are spilled when memory runs low
+     */
+    private static final String PENDING_HITS_FILE_NAME = "com.batch.android.dispatcher.googleanalytics.pending_hits";
+
+    /**
+     * Time the journal thread stays alive once idle
+     */
+    private static final long JOURNAL_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final GoogleAnalytics googleAnalytics;
+    private volatile Tracker tracker;
+    private final CampaignValueDictionary valueDictionary;
+    private final PayloadEnricher payloadEnricher;
+    private final DispatcherMemoryBudget memoryBudget;
+    private final HitJournal hitJournal;
+    /**
+     * Runs the journal reads and writes in order, off the caller and main threads
+     */
+    private final ExecutorService journalExecutor;
+    private final Context lifecycleContext;
+    private final LifecycleCallbacks lifecycleCallbacks;
+
+    /**
+     * Buffer of pending hits, null when hits are sent inline
+     */
+    private volatile HitFlushScheduler flushScheduler;
+
+    /**
+     * Lanes building and sending hits off the caller thread, null when done inline
+     */
+    private volatile StripedDispatchExecutor dispatchExecutor;
+    private final Object dispatchExecutorLock = new Object();
 
     public GoogleAnalyticsDispatcher(Context context) {
         this.googleAnalytics = GoogleAnalytics.getInstance(context);
         this.tracker = null;
+        this.valueDictionary = new CampaignValueDictionary(CampaignValueDictionary.DEFAULT_CAPACITY);
+        this.payloadEnricher = new PayloadEnricher();
+        this.memoryBudget = new DispatcherMemoryBudget(DispatcherMemoryBudget.DEFAULT_BUDGET_BYTES);
+        this.memoryBudget.registerCache(valueDictionary);
+        this.flushScheduler = null;
+        this.dispatchExecutor = null;
+        this.lifecycleCallbacks = new LifecycleCallbacks();
+        this.lifecycleContext = registerLifecycleCallbacks(context, lifecycleCallbacks);
+        this.hitJournal = createHitJournal(lifecycleContext);
+        this.journalExecutor = createJournalExecutor();
+    }
+
+    /**
+     * Prime the dispatcher so the first notification open doesn't pay for its initialization
+     * Creates the dispatcher and runs every event type through the attribution code without sending anything.
+     * Call it from a background thread once the tracking id is set, eg: when the app is idle after startup.
+     *
+     * @param context Context used to initialize the dispatcher
+     */
+    public static void warmUp(Context context)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        dispatcher.warmUp();
     }
 
     public static void setTrackingId(Context context, @XmlRes int trackingId)
@@ -64,18 +139,191 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
         dispatcher.setTrackingId(trackingId);
     }
 
-    void setTrackingId(String trackingId) {
+    /**
+     * Buffer hits instead of sending them inline
+     * Pending hits are sent when maxPendingHits are buffered, when the oldest one is maxDelayMillis old,
+     * when a notification is opened or an in-app message clicked, or when the app goes to the background.
+     *
+     * @param context Context used to initialize the dispatcher
+     * @param maxPendingHits Number of buffered hits triggering a flush
+     * @param maxDelayMillis Maximum time a hit stays in the buffer
+     */
+    public static void setFlushPolicy(Context context, int maxPendingHits, long maxDelayMillis)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        dispatcher.setFlushPolicy(maxPendingHits, maxDelayMillis);
+    }
+
+    /**
+     * Send a Batch payload field as a Google Analytics custom dimension
+     * Fields are only extracted from the payload when configured.
+     *
+     * @param context Context used to initialize the dispatcher
+     * @param field The payload field to send
+     * @param index Custom dimension index, as configured in the Google Analytics property, from 1 to 200.
+     *              Use 0 to stop sending the field.
+     * @throws IllegalArgumentException if the index is out of range
+     */
+    public static void setCustomDimension(Context context, @NonNull PayloadField field, int index)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        dispatcher.setCustomDimension(field, index);
+    }
+
+    void setCustomDimension(@NonNull PayloadField field, int index) {
+        payloadEnricher.setCustomDimension(field, index);
+    }
+
+    /**
+     * Build and send hits on background lanes instead of the Batch thread calling the dispatcher
+     * Events of the same campaign are always handled on the same lane, in order,
+     * while different campaigns are handled in parallel.
+     *
+     * @param context Context used to initialize the dispatcher
+     * @param laneCount Number of background lanes. Use 0 to go back to inline dispatching.
+     */
+    public static void setAsyncLanes(Context context, int laneCount)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        dispatcher.setAsyncLanes(laneCount);
+    }
+
+    void setAsyncLanes(int laneCount) {
+        StripedDispatchExecutor executor = null;
+        if (laneCount > 0) {
+            executor = new StripedDispatchExecutor(laneCount, StripedDispatchExecutor.DEFAULT_LANE_CAPACITY);
+        }
+        setDispatchExecutor(executor);
+    }
+
+    /**
+     * Replace the dispatch lanes
+     * Events already accepted by the previous lanes are sent before the new lanes, or the caller thread,
+     * handle any other event: the previous lanes are drained before the new ones are installed.
+     */
+    void setDispatchExecutor(StripedDispatchExecutor executor) {
+        synchronized (dispatchExecutorLock) {
+            StripedDispatchExecutor previous = dispatchExecutor;
+            if (previous != null) {
+                // Events dispatched meanwhile wait for the drain too, see dispatchEvent
+                previous.shutdown();
+                awaitTermination(previous);
+            }
+            dispatchExecutor = executor;
+        }
+    }
+
+    StripedDispatchExecutor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Wait for shut down lanes to run the events they accepted
+     * Interruptions are deferred: returning early would let later events overtake queued ones.
+     */
+    private static void awaitTermination(StripedDispatchExecutor executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set the memory the dispatcher caches and pending hits may use
+     * Over budget, pending hits are spilled to disk until the next flush.
+     * When the system asks to trim memory, caches are shrunk first, then pending hits are spilled.
+     *
+     * @param context Context used to initialize the dispatcher
+     * @param budgetBytes Memory budget, in bytes
+     */
+    public static void setMemoryBudget(Context context, long budgetBytes)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        dispatcher.getMemoryBudget().setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Report how well campaign values are shared between hits
+     *
+     * @param context Context used to initialize the dispatcher
+     * @return A snapshot of the campaign value dictionary statistics
+     */
+    @NonNull
+    public static CampaignValueStats getCampaignValueStats(Context context)
+    {
+        GoogleAnalyticsDispatcher dispatcher = GoogleAnalyticsRegistrar.getInstance(context);
+        return dispatcher.getValueDictionary().getStats();
+    }
+
+    DispatcherMemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    void setFlushPolicy(int maxPendingHits, long maxDelayMillis) {
+        setFlushScheduler(new HitFlushScheduler(maxPendingHits, maxDelayMillis, hitJournal, journalExecutor, new HitFlushScheduler.Sink() {
+            @Override
+            public void send(@NonNull Map<String, String> hit) {
+                sendHit(hit);
+            }
+        }));
+    }
+
+    void setFlushScheduler(HitFlushScheduler scheduler) {
+        HitFlushScheduler previous = flushScheduler;
+        flushScheduler = scheduler;
+        if (scheduler != null) {
+            memoryBudget.register(scheduler);
+        }
+        if (previous != null) {
+            memoryBudget.unregister(previous);
+            previous.flush();
+        }
+    }
+
+    synchronized void setTrackingId(String trackingId) {
         if (tracker == null) {
             tracker = googleAnalytics.newTracker(trackingId);
+            sendJournaledHits();
         }
     }
 
-    void setTrackingId(@XmlRes int trackingId) {
+    synchronized void setTrackingId(@XmlRes int trackingId) {
         if (tracker == null) {
             tracker = googleAnalytics.newTracker(trackingId);
+            sendJournaledHits();
         }
     }
 
+    /**
+     * Send the hits a previous process spilled to the journal, whether or not a flush policy is set
+     */
+    private void sendJournaledHits() {
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (HitFlushScheduler.PendingHit pendingHit : hitJournal.drain(System.currentTimeMillis())) {
+                    sendHit(pendingHit.withHitTime());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Executor running the journal reads and writes
+     */
+    ExecutorService getJournalExecutor() {
+        return journalExecutor;
+    }
+
     /**
      * Callback when a new event just happened in the Batch SDK.
      *
@@ -88,26 +336,179 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
             return;
         }
 
+        DispatchTask task = null;
+        while (true) {
+            StripedDispatchExecutor executor = dispatchExecutor;
+            if (executor == null) {
+                dispatchHit(type, payload);
+                return;
+            }
+            if (task == null) {
+                task = new DispatchTask(type, payload);
+            }
+            // Waits for room when the lane is full, so the event never overtakes its campaign
+            if (executor.submit(getPartitionKey(type, payload), task)) {
+                return;
+            }
+            // The lanes are being replaced: wait for them to drain, then use whatever replaced them
+            awaitTermination(executor);
+            if (executor == dispatchExecutor) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void dispatchHit(@NonNull Batch.EventDispatcher.Type type, @NonNull Batch.EventDispatcher.Payload payload) {
+        Map<String, String> hit = buildHit(type, payload, valueDictionary);
+
+        HitFlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.enqueue(hit, isHighPriority(type));
+        } else {
+            sendHit(hit);
+        }
+        memoryBudget.enforce();
+    }
+
+    /**
+     * @param dictionary Dictionary sharing the campaign values parsed from the payload,
+     *                   null to keep the parsed instances
+     */
+    private Map<String, String> buildHit(@NonNull Batch.EventDispatcher.Type type,
+                                         @NonNull Batch.EventDispatcher.Payload payload,
+                                         @Nullable CampaignValueDictionary dictionary)
+    {
         BatchEventBuilder builder = new BatchEventBuilder();
         builder.setLabel("batch");
         builder.setAction(getGoogleAnalyticsEventName(type));
 
         if (type.isNotificationEvent()) {
-            buildNotificationParams(builder, payload);
+            buildNotificationParams(builder, payload, dictionary);
         } else if (type.isMessagingEvent()) {
-            buildInAppParams(builder, payload);
+            buildInAppParams(builder, payload, dictionary);
         }
+        payloadEnricher.enrich(builder, type, payload);
+        return builder.build();
+    }
 
-        tracker.send(builder.build());
+    /**
+     * Prime the dispatcher before the first real event
+     * Loads the classes and code paths used to attribute events, including deeplink parsing,
+     * by building a synthetic hit for every event type. Synthetic hits are never sent,
+     * and bypass the campaign value dictionary so they don't show up in its statistics.
+     *
+     * @return Number of synthetic hits built
+     */
+    int warmUp() {
+        Tracker currentTracker = tracker;
+        if (currentTracker != null) {
+            // Loads the client id ahead of the first hit
+            currentTracker.get(CLIENT_ID);
+        }
+
+        int built = 0;
+        WarmUpPayload payload = new WarmUpPayload();
+        for (Batch.EventDispatcher.Type type : Batch.EventDispatcher.Type.values()) {
+            buildHit(type, payload, null);
+            built++;
+        }
+        return built;
+    }
+
+    /**
+     * Send every buffered hit right away
+     */
+    void flush() {
+        HitFlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.flush();
+        }
     }
 
-    private static void buildInAppParams(BatchEventBuilder builder, Batch.EventDispatcher.Payload payload)
+    private void sendHit(Map<String, String> hit) {
+        Tracker currentTracker = tracker;
+        if (currentTracker != null) {
+            currentTracker.send(hit);
+        }
+    }
+
+    /**
+     * Stop listening to the app lifecycle, send buffered hits and stop the background lanes
+     * The application context outlives the dispatcher: without this, it would keep it reachable.
+     */
+    void release() {
+        lifecycleContext.unregisterComponentCallbacks(lifecycleCallbacks);
+        // Lanes drain first, so the hits they were still building are part of the flush
+        setDispatchExecutor(null);
+        flush();
+    }
+
+    /**
+     * @return The context the callbacks were registered on
+     */
+    private static Context registerLifecycleCallbacks(Context context, ComponentCallbacks2 callbacks) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+        applicationContext.registerComponentCallbacks(callbacks);
+        return applicationContext;
+    }
+
+    /**
+     * @return Journal whose file is only looked up on the journal executor: getting the files directory may create it
+     */
+    private static HitJournal createHitJournal(final Context context) {
+        return new HitJournal(new HitJournal.Location() {
+            @Nullable
+            @Override
+            public File getFile() {
+                File directory = context.getFilesDir();
+                if (directory == null) {
+                    // Pending hits stay in memory
+                    return null;
+                }
+                return new File(directory, PENDING_HITS_FILE_NAME);
+            }
+        });
+    }
+
+    /**
+     * @return Single thread executor, whose thread only lives while there is journal work
+     */
+    private static ExecutorService createJournalExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                JOURNAL_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "batch-ga-journal");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return Dictionary shared by every hit built by this dispatcher
+     */
+    CampaignValueDictionary getValueDictionary() {
+        return valueDictionary;
+    }
+
+    private static void buildInAppParams(BatchEventBuilder builder,
+                                         Batch.EventDispatcher.Payload payload,
+                                         @Nullable CampaignValueDictionary dictionary)
     {
+        String trackingId = resolve(dictionary, payload.getTrackingId());
         builder.setCategory("in-app");
-        builder.setCampaignName(payload.getTrackingId());
+        builder.setCampaignName(trackingId);
         builder.setCampaignSource("batch");
         builder.setCampaignMedium("in-app");
-        builder.setTrackingId(payload.getTrackingId());
+        builder.setTrackingId(trackingId);
 
         String deeplink = payload.getDeeplink();
         if (deeplink != null) {
@@ -125,12 +526,14 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
         }
 
         // Load from custom payload
-        builder.setCampaignName(payload.getCustomValue(UTM_CAMPAIGN));
-        builder.setCampaignSource(payload.getCustomValue(UTM_SOURCE));
-        builder.setCampaignMedium(payload.getCustomValue(UTM_MEDIUM));
+        builder.setCampaignName(resolve(dictionary, payload.getCustomValue(UTM_CAMPAIGN)));
+        builder.setCampaignSource(resolve(dictionary, payload.getCustomValue(UTM_SOURCE)));
+        builder.setCampaignMedium(resolve(dictionary, payload.getCustomValue(UTM_MEDIUM)));
     }
 
-    private static void buildNotificationParams(BatchEventBuilder builder, Batch.EventDispatcher.Payload payload)
+    private static void buildNotificationParams(BatchEventBuilder builder,
+                                                Batch.EventDispatcher.Payload payload,
+                                                @Nullable CampaignValueDictionary dictionary)
     {
         builder.setCategory("push");
         builder.setCampaignSource("batch");
@@ -146,21 +549,33 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
                 Map<String, String> fragments = getFragmentMap(fragment);
                 // Copy from fragment part of the deeplink
                 builder.setCampaignContent(fragments.get(UTM_CONTENT));
-                builder.setCampaignMedium(fragments.get(UTM_MEDIUM));
-                builder.setCampaignSource(fragments.get(UTM_SOURCE));
-                builder.setCampaignName(fragments.get(UTM_CAMPAIGN));
+                builder.setCampaignMedium(resolve(dictionary, fragments.get(UTM_MEDIUM)));
+                builder.setCampaignSource(resolve(dictionary, fragments.get(UTM_SOURCE)));
+                builder.setCampaignName(resolve(dictionary, fragments.get(UTM_CAMPAIGN)));
             }
             // Copy from query parameters of the deeplink
             builder.setCampaignContent(getQueryParameterCaseInsensitive(uri, UTM_CONTENT));
-            builder.setCampaignMedium(getQueryParameterCaseInsensitive(uri, UTM_MEDIUM));
-            builder.setCampaignSource(getQueryParameterCaseInsensitive(uri, UTM_SOURCE));
-            builder.setCampaignName(getQueryParameterCaseInsensitive(uri, UTM_CAMPAIGN));
+            builder.setCampaignMedium(resolve(dictionary, getQueryParameterCaseInsensitive(uri, UTM_MEDIUM)));
+            builder.setCampaignSource(resolve(dictionary, getQueryParameterCaseInsensitive(uri, UTM_SOURCE)));
+            builder.setCampaignName(resolve(dictionary, getQueryParameterCaseInsensitive(uri, UTM_CAMPAIGN)));
         }
 
         // Load from custom payload
-        builder.setCampaignName(payload.getCustomValue(UTM_CAMPAIGN));
-        builder.setCampaignSource(payload.getCustomValue(UTM_SOURCE));
-        builder.setCampaignMedium(payload.getCustomValue(UTM_MEDIUM));
+        builder.setCampaignName(resolve(dictionary, payload.getCustomValue(UTM_CAMPAIGN)));
+        builder.setCampaignSource(resolve(dictionary, payload.getCustomValue(UTM_SOURCE)));
+        builder.setCampaignMedium(resolve(dictionary, payload.getCustomValue(UTM_MEDIUM)));
+    }
+
+    /**
+     * Share a value parsed from the payload, the dispatcher literals are shared by the constant pool already
+     */
+    @Nullable
+    private static String resolve(@Nullable CampaignValueDictionary dictionary, @Nullable String value)
+    {
+        if (dictionary == null) {
+            return value;
+        }
+        return dictionary.resolve(value);
     }
 
     private static Map<String, String> getFragmentMap(String fragment)
@@ -188,6 +603,50 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
     }
 
 
+    /**
+     * Key keeping the events of a campaign on the same lane: the campaign name their hit is sent with
+     * Follows the precedence used to build the hit: the custom payload first, then the tracking id
+     * for in-app messages, the deeplink query and fragment for notifications.
+     *
+     * @return The campaign name, null if the event has none and no order to keep
+     */
+    @Nullable
+    private static String getPartitionKey(Batch.EventDispatcher.Type type, Batch.EventDispatcher.Payload payload) {
+        String campaign = payload.getCustomValue(UTM_CAMPAIGN);
+        if (campaign != null) {
+            return campaign;
+        }
+        if (type.isMessagingEvent()) {
+            return payload.getTrackingId();
+        }
+        if (type.isNotificationEvent()) {
+            return getDeeplinkCampaign(payload.getDeeplink());
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String getDeeplinkCampaign(@Nullable String deeplink) {
+        if (deeplink == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(deeplink.trim());
+        // Query parameters override the fragment, see buildNotificationParams
+        String campaign = getQueryParameterCaseInsensitive(uri, UTM_CAMPAIGN);
+        if (campaign == null) {
+            String fragment = uri.getFragment();
+            if (fragment != null && !fragment.isEmpty()) {
+                campaign = getFragmentMap(fragment).get(UTM_CAMPAIGN);
+            }
+        }
+        return campaign;
+    }
+
+    private static boolean isHighPriority(Batch.EventDispatcher.Type type) {
+        return type == Batch.EventDispatcher.Type.NOTIFICATION_OPEN
+                || type == Batch.EventDispatcher.Type.MESSAGING_CLICK;
+    }
+
     private static String getGoogleAnalyticsEventName(Batch.EventDispatcher.Type type) {
         switch (type) {
             case NOTIFICATION_DISPLAY:
@@ -208,4 +667,90 @@ public class GoogleAnalyticsDispatcher implements BatchEventDispatcher {
         return UNKNOWN_EVENT_NAME;
     }
 
+    private class DispatchTask implements Runnable {
+
+        private final Batch.EventDispatcher.Type type;
+        private final Batch.EventDispatcher.Payload payload;
+
+        DispatchTask(Batch.EventDispatcher.Type type, Batch.EventDispatcher.Payload payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        @Override
+        public void run() {
+            dispatchHit(type, payload);
+        }
+    }
+
+    /**
+     * Payload of the synthetic events built by {@link #warmUp()}
+     */
+    private static class WarmUpPayload implements Batch.EventDispatcher.Payload {
+
+        @Nullable
+        @Override
+        public String getTrackingId()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getDeeplink()
+        {
+            return WARM_UP_DEEPLINK;
+        }
+
+        @Nullable
+        @Override
+        public String getCustomValue(@NonNull String key)
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isPositiveAction() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public BatchMessage getMessagingPayload()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public BatchPushPayload getPushPayload()
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Flush buffered hits when the app goes to the background and trim memory when asked
+     */
+    private class LifecycleCallbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                flush();
+            }
+            memoryBudget.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            flush();
+            memoryBudget.onLowMemory();
+        }
+    }
+
 }
@@ -2,6 +2,8 @@ package com.batch.android.dispatcher.googleanalytics;
 
 import android.content.Context;
 
+import androidx.annotation.VisibleForTesting;
+
 import com.batch.android.BatchEventDispatcher;
 import com.batch.android.eventdispatcher.DispatcherRegistrar;
 
@@ -15,7 +17,7 @@ public class GoogleAnalyticsRegistrar implements DispatcherRegistrar {
     /**
      * Singleton instance
      */
-    private static GoogleAnalyticsDispatcher instance = null;
+    private static volatile GoogleAnalyticsDispatcher instance = null;
 
     /**
      * Singleton accessor
@@ -24,10 +26,30 @@ public class GoogleAnalyticsRegistrar implements DispatcherRegistrar {
      */
     static GoogleAnalyticsDispatcher getInstance(Context context)
     {
-        if (instance == null) {
-            instance = new GoogleAnalyticsDispatcher(context);
+        GoogleAnalyticsDispatcher dispatcher = instance;
+        if (dispatcher == null) {
+            synchronized (GoogleAnalyticsRegistrar.class) {
+                dispatcher = instance;
+                if (dispatcher == null) {
+                    dispatcher = new GoogleAnalyticsDispatcher(context);
+                    instance = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    @VisibleForTesting
+    static void clearInstance()
+    {
+        GoogleAnalyticsDispatcher dispatcher;
+        synchronized (GoogleAnalyticsRegistrar.class) {
+            dispatcher = instance;
+            instance = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.release();
         }
-        return instance;
     }
 
     /**
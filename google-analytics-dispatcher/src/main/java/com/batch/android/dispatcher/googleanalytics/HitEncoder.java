@@ -0,0 +1,236 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming Measurement Protocol encoder
+ * Writes hits as application/x-www-form-urlencoded bytes, the format of the Measurement Protocol payload,
+ * straight into a ByteBuffer or an OutputStream without building intermediate Strings.
+ * Keys used by the dispatcher are encoded once, values that only contain safe characters are copied as is.
+ * Output is identical to {@link java.net.URLEncoder} with UTF-8. Not thread-safe, use one encoder per thread.
+ * An encoder keeping the tracker prefix of keys writes hits that {@link #decode(String)} reads back as is,
+ * to store them rather than send them.
+ * See : https://developers.google.com/analytics/devguides/collection/protocol/v1/reference
+ */
+final class HitEncoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * Tracker keys are prefixed with an ampersand, the Measurement Protocol parameter is what follows
+     */
+    private static final char TRACKER_KEY_PREFIX = '&';
+
+    /**
+     * Keys set by the dispatcher and the event builder
+     */
+    private static final String[] KNOWN_KEYS = {
+            "&t", "&ea", "&ec", "&el", "&cs", "&cm", "&cn", "&cc", "&ht", "batch_tracking_id"
+    };
+
+    /**
+     * Known keys encoded as Measurement Protocol parameters, without the tracker prefix
+     */
+    private static final Map<String, byte[]> encodedKeys = new HashMap<>();
+
+    /**
+     * Known keys encoded with their tracker prefix, if any
+     */
+    private static final Map<String, byte[]> encodedPrefixedKeys = new HashMap<>();
+
+    static {
+        for (String key : KNOWN_KEYS) {
+            encodedKeys.put(key, encodeKey(key, false));
+            encodedPrefixedKeys.put(key, encodeKey(key, true));
+        }
+    }
+
+    private final boolean keepTrackerPrefix;
+    private final Map<String, byte[]> knownKeys;
+
+    /**
+     * Reusable buffer for the OutputStream path, grows to fit the largest hit
+     */
+    private ByteBuffer streamBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Encoder writing Measurement Protocol payloads
+     */
+    HitEncoder() {
+        this(false);
+    }
+
+    /**
+     * @param keepTrackerPrefix Encode the tracker prefix of keys instead of dropping it,
+     *                          so that decoding tells prefixed keys from the others
+     */
+    HitEncoder(boolean keepTrackerPrefix) {
+        this.keepTrackerPrefix = keepTrackerPrefix;
+        this.knownKeys = keepTrackerPrefix ? encodedPrefixedKeys : encodedKeys;
+    }
+
+    /**
+     * Encode a hit into a buffer
+     *
+     * @param hit The hit, as built by the event builder
+     * @param out Destination, written from its current position
+     * @return Number of bytes written
+     * @throws BufferOverflowException if the hit doesn't fit in the remaining space
+     */
+    int encode(@NonNull Map<String, String> hit, @NonNull ByteBuffer out) {
+        int start = out.position();
+        boolean first = true;
+        for (Map.Entry<String, String> entry : hit.entrySet()) {
+            if (!first) {
+                out.put((byte) '&');
+            }
+            first = false;
+
+            byte[] encodedKey = knownKeys.get(entry.getKey());
+            if (encodedKey != null) {
+                out.put(encodedKey);
+            } else {
+                writeKey(out, entry.getKey(), keepTrackerPrefix);
+            }
+            out.put((byte) '=');
+            String value = entry.getValue();
+            if (value != null) {
+                writeValue(out, value);
+            }
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Encode a hit into a stream, with a single write
+     *
+     * @param hit The hit, as built by the event builder
+     * @param out Destination stream
+     * @return Number of bytes written
+     */
+    int encode(@NonNull Map<String, String> hit, @NonNull OutputStream out) throws IOException {
+        while (true) {
+            streamBuffer.clear();
+            try {
+                encode(hit, streamBuffer);
+                break;
+            } catch (BufferOverflowException e) {
+                streamBuffer = ByteBuffer.allocate(streamBuffer.capacity() * 2);
+            }
+        }
+        out.write(streamBuffer.array(), 0, streamBuffer.position());
+        return streamBuffer.position();
+    }
+
+    /**
+     * Decode a hit written by an encoder
+     * Slow path, only meant to read back hits that were stored, eg: spilled to disk.
+     * Keys are decoded as they were written: use an encoder keeping the tracker prefix to get the original keys back.
+     *
+     * @param encoded Encoded hit
+     * @return The hit
+     */
+    @NonNull
+    static Map<String, String> decode(@NonNull String encoded) throws UnsupportedEncodingException {
+        Map<String, String> hit = new HashMap<>();
+        if (encoded.isEmpty()) {
+            return hit;
+        }
+        for (String parameter : encoded.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            hit.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                    URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+        }
+        return hit;
+    }
+
+    private static byte[] encodeKey(String key, boolean keepTrackerPrefix) {
+        ByteBuffer buffer = ByteBuffer.allocate(key.length() * 9);
+        writeKey(buffer, key, keepTrackerPrefix);
+        byte[] encoded = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    private static void writeKey(ByteBuffer out, String key, boolean keepTrackerPrefix) {
+        int start = !keepTrackerPrefix && key.length() > 0 && key.charAt(0) == TRACKER_KEY_PREFIX ? 1 : 0;
+        writeEncoded(out, key, start);
+    }
+
+    private static void writeValue(ByteBuffer out, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (!isSafe(value.charAt(i))) {
+                writeEncoded(out, value, 0);
+                return;
+            }
+        }
+        // Fast path: plain ASCII copy
+        for (int i = 0; i < length; i++) {
+            out.put((byte) value.charAt(i));
+        }
+    }
+
+    private static void writeEncoded(ByteBuffer out, String value, int start) {
+        int length = value.length();
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (isSafe(c)) {
+                out.put((byte) c);
+            } else if (c == ' ') {
+                out.put((byte) '+');
+            } else if (c < 0x80) {
+                writePercent(out, c);
+            } else if (c < 0x800) {
+                writePercent(out, 0xC0 | (c >> 6));
+                writePercent(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writePercent(out, 0xF0 | (codePoint >> 18));
+                writePercent(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                writePercent(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                writePercent(out, 0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate, replaced like the UTF-8 charset encoder does
+                writePercent(out, '?');
+            } else {
+                writePercent(out, 0xE0 | (c >> 12));
+                writePercent(out, 0x80 | ((c >> 6) & 0x3F));
+                writePercent(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void writePercent(ByteBuffer out, int b) {
+        out.put((byte) '%');
+        out.put(HEX_DIGITS[(b >> 4) & 0xF]);
+        out.put(HEX_DIGITS[b & 0xF]);
+    }
+
+    /**
+     * Characters left as is by application/x-www-form-urlencoded
+     */
+    private static boolean isSafe(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '*';
+    }
+
+}
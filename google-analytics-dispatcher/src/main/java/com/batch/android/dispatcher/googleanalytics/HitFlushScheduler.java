@@ -0,0 +1,399 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Buffers hits and sends them to the tracker in batches
+ * Pending hits are flushed when the buffer is full, when the oldest hit is too old,
+ * when a high priority hit arrives or when the app goes to the background.
+ * At most one wakeup is armed at a time, so bursts of hits only cost a single wakeup.
+ * Every delayed hit carries the time it was queued, so Google Analytics keeps the real event time:
+ * the tracker computes the queue time from it when it finally dispatches the hit.
+ * When memory runs low, pending hits are spilled to a {@link HitJournal} and sent with the next flush.
+ * The journal is only read and written on its executor, never on the thread enqueuing or flushing hits.
+ * See : https://developers.google.com/analytics/devguides/collection/protocol/v1/parameters#qt
+ */
+final class HitFlushScheduler implements MemoryConsumer {
+
+    /**
+     * Google Analytics SDK hit time key, in wall-clock milliseconds
+     */
+    static final String HIT_TIME = "&ht";
+
+    /**
+     * Estimated size of a pending hit and its map, excluding values
+     */
+    private static final int HIT_OVERHEAD_BYTES = 96;
+
+    /**
+     * Estimated size of a map entry and its value String, excluding the characters
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 72;
+
+    /**
+     * Time source, in milliseconds
+     */
+    interface Clock {
+        /**
+         * @return Monotonic time, used to schedule flushes
+         */
+        long now();
+
+        /**
+         * @return Wall-clock time, sent as the hit time
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * Schedules the delayed flush of the buffer
+     */
+    interface Wakeup {
+        void schedule(@NonNull Runnable task, long delayMillis);
+
+        void cancel(@NonNull Runnable task);
+    }
+
+    /**
+     * Destination of flushed hits
+     */
+    interface Sink {
+        void send(@NonNull Map<String, String> hit);
+    }
+
+    private final int maxPendingHits;
+    private final long maxDelayMillis;
+    private final Clock clock;
+    private final Wakeup wakeup;
+    private final Sink sink;
+    private final HitJournal journal;
+    private final Executor journalExecutor;
+
+    private final List<PendingHit> pendingHits = new ArrayList<>();
+    private long footprintBytes = 0;
+    private boolean wakeupArmed = false;
+
+    /**
+     * Hits handed to the journal since it was last read back
+     */
+    private int spilledCount = 0;
+
+    private final Runnable wakeupTask = new Runnable() {
+        @Override
+        public void run() {
+            onWakeup();
+        }
+    };
+
+    HitFlushScheduler(int maxPendingHits,
+                      long maxDelayMillis,
+                      @Nullable HitJournal journal,
+                      @Nullable Executor journalExecutor,
+                      @NonNull Sink sink)
+    {
+        this(maxPendingHits, maxDelayMillis, new SystemTimeClock(), new MainLooperWakeup(), journal, journalExecutor, sink);
+    }
+
+    HitFlushScheduler(int maxPendingHits,
+                      long maxDelayMillis,
+                      @NonNull Clock clock,
+                      @NonNull Wakeup wakeup,
+                      @NonNull Sink sink)
+    {
+        this(maxPendingHits, maxDelayMillis, clock, wakeup, null, null, sink);
+    }
+
+    /**
+     * @param journal Journal pending hits are spilled to, null to keep them in memory
+     * @param journalExecutor Runs the journal reads and writes in order, required with a journal
+     */
+    HitFlushScheduler(int maxPendingHits,
+                      long maxDelayMillis,
+                      @NonNull Clock clock,
+                      @NonNull Wakeup wakeup,
+                      @Nullable HitJournal journal,
+                      @Nullable Executor journalExecutor,
+                      @NonNull Sink sink)
+    {
+        this.maxPendingHits = Math.max(maxPendingHits, 1);
+        this.maxDelayMillis = Math.max(maxDelayMillis, 0);
+        this.clock = clock;
+        this.wakeup = wakeup;
+        this.journal = journalExecutor != null ? journal : null;
+        this.journalExecutor = journalExecutor;
+        this.sink = sink;
+    }
+
+    /**
+     * Buffer a hit until the next flush
+     *
+     * @param hit The hit built by the dispatcher
+     * @param highPriority Flush the buffer right away, including this hit
+     */
+    void enqueue(@NonNull Map<String, String> hit, boolean highPriority) {
+        List<PendingHit> toSend = null;
+        synchronized (this) {
+            PendingHit pendingHit = new PendingHit(hit, clock.now(), clock.currentTimeMillis());
+            pendingHits.add(pendingHit);
+            footprintBytes += pendingHit.footprintBytes;
+            if (highPriority || pendingHits.size() >= maxPendingHits) {
+                toSend = drain();
+            } else if (!wakeupArmed) {
+                wakeupArmed = true;
+                wakeup.schedule(wakeupTask, maxDelayMillis);
+            }
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+
+    /**
+     * Send every pending hit right away
+     */
+    void flush() {
+        List<PendingHit> toSend;
+        synchronized (this) {
+            toSend = drain();
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return pendingHits.size();
+    }
+
+    @Override
+    public synchronized long getFootprintBytes() {
+        return footprintBytes;
+    }
+
+    /**
+     * Spill the oldest pending hits to the journal until the footprint is at most maxBytes
+     * Hits are written in a single batch on the journal executor.
+     * Without a journal, or if writing fails, hits stay in memory: they are never dropped.
+     */
+    @Override
+    public synchronized void shrink(long maxBytes) {
+        if (journal == null || footprintBytes <= maxBytes) {
+            return;
+        }
+
+        int spillCount = 0;
+        long spilledBytes = 0;
+        while (spillCount < pendingHits.size() && footprintBytes - spilledBytes > maxBytes) {
+            spilledBytes += pendingHits.get(spillCount).footprintBytes;
+            spillCount++;
+        }
+
+        List<PendingHit> spilled = new ArrayList<>(pendingHits.subList(0, spillCount));
+        pendingHits.subList(0, spillCount).clear();
+        footprintBytes -= spilledBytes;
+        spilledCount += spillCount;
+        if (pendingHits.isEmpty() && wakeupArmed) {
+            wakeupArmed = false;
+            wakeup.cancel(wakeupTask);
+        }
+        // Queued while holding the lock, so a concurrent flush reads the journal after this write
+        journalExecutor.execute(new SpillTask(spilled));
+    }
+
+    /**
+     * Put back hits the journal could not take, ahead of the ones queued since
+     */
+    private void restore(List<PendingHit> hits) {
+        synchronized (this) {
+            pendingHits.addAll(0, hits);
+            for (PendingHit hit : hits) {
+                footprintBytes += hit.footprintBytes;
+            }
+            if (!wakeupArmed) {
+                // Checks the age of the restored hits right away
+                wakeupArmed = true;
+                wakeup.schedule(wakeupTask, 0);
+            }
+        }
+    }
+
+    private void onWakeup() {
+        List<PendingHit> toSend = null;
+        synchronized (this) {
+            wakeupArmed = false;
+            if (pendingHits.isEmpty()) {
+                return;
+            }
+            long age = clock.now() - pendingHits.get(0).queuedAt;
+            if (age >= maxDelayMillis) {
+                // Flush everything, younger hits ride along instead of arming another wakeup
+                toSend = drain();
+            } else {
+                wakeupArmed = true;
+                wakeup.schedule(wakeupTask, maxDelayMillis - age);
+            }
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+
+    /**
+     * Take every pending hit out of the buffer
+     * When hits were spilled, they are read back and sent on the journal executor, followed by the drained hits.
+     * Must be called while holding the lock
+     *
+     * @return Hits the caller should send, null if there are none
+     */
+    private List<PendingHit> drain() {
+        if (wakeupArmed) {
+            wakeupArmed = false;
+            wakeup.cancel(wakeupTask);
+        }
+        List<PendingHit> drained = null;
+        if (!pendingHits.isEmpty()) {
+            drained = new ArrayList<>(pendingHits);
+            pendingHits.clear();
+            footprintBytes = 0;
+        }
+        if (spilledCount > 0) {
+            spilledCount = 0;
+            // Queued after the spills, and older hits are sent first
+            journalExecutor.execute(new JournalFlushTask(drained));
+            return null;
+        }
+        return drained;
+    }
+
+    private void send(List<PendingHit> hits) {
+        long now = clock.now();
+        for (PendingHit pendingHit : hits) {
+            // Hits that didn't wait are stamped by the tracker itself
+            sink.send(now > pendingHit.queuedAt ? pendingHit.withHitTime() : pendingHit.hit);
+        }
+    }
+
+    /**
+     * Writes spilled hits to the journal, or puts them back in the buffer if it fails
+     */
+    private final class SpillTask implements Runnable {
+
+        private final List<PendingHit> hits;
+
+        SpillTask(List<PendingHit> hits) {
+            this.hits = hits;
+        }
+
+        @Override
+        public void run() {
+            if (!journal.append(hits)) {
+                restore(hits);
+            }
+        }
+    }
+
+    /**
+     * Sends the hits read back from the journal, then the hits drained from the buffer
+     */
+    private final class JournalFlushTask implements Runnable {
+
+        private final List<PendingHit> hits;
+
+        JournalFlushTask(@Nullable List<PendingHit> hits) {
+            this.hits = hits;
+        }
+
+        @Override
+        public void run() {
+            for (PendingHit pendingHit : journal.drain(clock.currentTimeMillis())) {
+                sink.send(pendingHit.withHitTime());
+            }
+            if (hits != null) {
+                send(hits);
+            }
+        }
+    }
+
+    static final class PendingHit {
+
+        final Map<String, String> hit;
+        /**
+         * Monotonic time the hit was queued at
+         */
+        final long queuedAt;
+        /**
+         * Wall-clock time the hit was queued at
+         */
+        final long hitTime;
+        final long footprintBytes;
+
+        PendingHit(Map<String, String> hit, long queuedAt, long hitTime) {
+            this.hit = hit;
+            this.queuedAt = queuedAt;
+            this.hitTime = hitTime;
+            this.footprintBytes = estimateSize(hit);
+        }
+
+        Map<String, String> withHitTime() {
+            Map<String, String> delayedHit = new HashMap<>(hit);
+            delayedHit.put(HIT_TIME, String.valueOf(hitTime));
+            return delayedHit;
+        }
+    }
+
+    private static long estimateSize(Map<String, String> hit) {
+        long size = HIT_OVERHEAD_BYTES;
+        for (Map.Entry<String, String> entry : hit.entrySet()) {
+            size += ENTRY_OVERHEAD_BYTES;
+            if (entry.getValue() != null) {
+                size += 2L * entry.getValue().length();
+            }
+        }
+        return size;
+    }
+
+    private static final class SystemTimeClock implements Clock {
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private static final class MainLooperWakeup implements Wakeup {
+
+        private Handler handler;
+
+        @Override
+        public synchronized void schedule(@NonNull Runnable task, long delayMillis) {
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public synchronized void cancel(@NonNull Runnable task) {
+            if (handler != null) {
+                handler.removeCallbacks(task);
+            }
+        }
+    }
+
+}
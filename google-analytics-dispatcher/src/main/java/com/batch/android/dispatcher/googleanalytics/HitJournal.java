@@ -0,0 +1,174 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk journal of pending hits
+ * Hits are spilled here instead of being dropped when memory runs low, and sent with the next flush.
+ * Each line holds the wall-clock time the hit was queued and the hit encoded by {@link HitEncoder}:
+ * the journal outlives the process, so monotonic times would be meaningless once read back.
+ * Reads and writes hit the disk: callers run them on a background thread.
+ * Finding where the journal is stored may hit the disk too, so it is only done by the first read or write.
+ */
+final class HitJournal {
+
+    /**
+     * Google Analytics drops hits queued for longer than this
+     * See : https://developers.google.com/analytics/devguides/collection/protocol/v1/parameters#qt
+     */
+    static final long MAX_QUEUE_TIME_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+    private static final String CHARSET = "US-ASCII";
+
+    private final Location location;
+    /**
+     * Resolved by the first read or write, null until then or if the journal can't be stored
+     */
+    private File file;
+    /**
+     * Keeps the tracker prefix of keys, so that hits are read back with their original keys
+     */
+    private final HitEncoder encoder = new HitEncoder(true);
+
+    HitJournal(@NonNull final File file) {
+        this(new Location() {
+            @Nullable
+            @Override
+            public File getFile() {
+                return file;
+            }
+        });
+    }
+
+    HitJournal(@NonNull Location location) {
+        this.location = location;
+    }
+
+    /**
+     * Append hits to the journal, all or nothing
+     *
+     * @return false if the hits could not be written
+     */
+    synchronized boolean append(@NonNull List<HitFlushScheduler.PendingHit> hits) {
+        File file = getFile();
+        if (file == null) {
+            return false;
+        }
+        long previousLength = file.length();
+        FileOutputStream fileStream = null;
+        try {
+            fileStream = new FileOutputStream(file, true);
+            BufferedOutputStream out = new BufferedOutputStream(fileStream);
+            for (HitFlushScheduler.PendingHit hit : hits) {
+                out.write(String.valueOf(hit.hitTime).getBytes(CHARSET));
+                out.write(' ');
+                encoder.encode(hit.hit, out);
+                out.write('\n');
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            // Don't leave a partial write behind, the hits stay in memory
+            if (fileStream != null) {
+                try {
+                    fileStream.getChannel().truncate(previousLength);
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        } finally {
+            closeQuietly(fileStream);
+        }
+    }
+
+    /**
+     * Read and remove every hit of the journal
+     * Hits Google Analytics would reject because of their age are dropped.
+     * The journal is only removed once read to the end: if reading fails, it is kept whole for a later drain.
+     *
+     * @param now Current wall-clock time
+     * @return Hits in the order they were appended, empty if the journal could not be read
+     */
+    @NonNull
+    synchronized List<HitFlushScheduler.PendingHit> drain(long now) {
+        File file = getFile();
+        if (file == null || !file.exists()) {
+            return Collections.emptyList();
+        }
+
+        List<HitFlushScheduler.PendingHit> hits = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator < 0) {
+                    continue;
+                }
+                try {
+                    long hitTime = Long.parseLong(line.substring(0, separator));
+                    if (now - hitTime > MAX_QUEUE_TIME_MILLIS) {
+                        continue;
+                    }
+                    // Spilled hits are always sent with their hit time, the monotonic time is unused
+                    hits.add(new HitFlushScheduler.PendingHit(HitEncoder.decode(line.substring(separator + 1)), 0, hitTime));
+                } catch (IllegalArgumentException e) {
+                    // Corrupted line, skip it
+                }
+            }
+        } catch (IOException e) {
+            // Hits read so far are still in the file, they will be read again with the rest
+            return Collections.emptyList();
+        } finally {
+            closeQuietly(reader);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return hits;
+    }
+
+    @Nullable
+    private File getFile() {
+        if (file == null) {
+            file = location.getFile();
+        }
+        return file;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Where the journal is stored
+     */
+    interface Location {
+
+        /**
+         * @return The journal file, null if it can't be stored
+         */
+        @Nullable
+        File getFile();
+    }
+
+}
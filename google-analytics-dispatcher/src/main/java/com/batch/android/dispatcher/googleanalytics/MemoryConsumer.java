@@ -0,0 +1,20 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+/**
+ * Cache or buffer accounted for in the {@link DispatcherMemoryBudget}
+ */
+interface MemoryConsumer {
+
+    /**
+     * @return Estimated number of bytes retained
+     */
+    long getFootprintBytes();
+
+    /**
+     * Release memory until the footprint is at most maxBytes, or nothing more can be released
+     *
+     * @param maxBytes Footprint to reach, 0 to release everything possible
+     */
+    void shrink(long maxBytes);
+
+}
@@ -0,0 +1,81 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies configured Batch payload fields into Google Analytics custom dimensions
+ * Only configured fields are extracted, through a {@link PayloadView} created on demand.
+ * When nothing is configured, enriching a hit is a single volatile read.
+ */
+final class PayloadEnricher {
+
+    /**
+     * Highest custom dimension index of a Google Analytics 360 property
+     * See : https://support.google.com/analytics/answer/2709828
+     */
+    static final int MAX_CUSTOM_DIMENSION_INDEX = 200;
+
+    /**
+     * Configured mappings, replaced as a whole when the configuration changes
+     */
+    private volatile Mapping[] mappings = new Mapping[0];
+
+    /**
+     * Send a payload field as a custom dimension
+     *
+     * @param field The payload field
+     * @param index Custom dimension index, from 1 to {@link #MAX_CUSTOM_DIMENSION_INDEX}. Use 0 to stop sending the field.
+     * @throws IllegalArgumentException if the index is out of range
+     */
+    synchronized void setCustomDimension(@NonNull PayloadField field, int index) {
+        if (index < 0 || index > MAX_CUSTOM_DIMENSION_INDEX) {
+            throw new IllegalArgumentException("Custom dimension index must be between 1 and "
+                    + MAX_CUSTOM_DIMENSION_INDEX + ", or 0 to remove it: " + index);
+        }
+        List<Mapping> updated = new ArrayList<>();
+        for (Mapping mapping : mappings) {
+            if (mapping.field != field) {
+                updated.add(mapping);
+            }
+        }
+        if (index > 0) {
+            updated.add(new Mapping(field, index));
+        }
+        mappings = updated.toArray(new Mapping[0]);
+    }
+
+    void enrich(@NonNull BatchEventBuilder builder,
+                @NonNull Batch.EventDispatcher.Type type,
+                @NonNull Batch.EventDispatcher.Payload payload)
+    {
+        Mapping[] current = mappings;
+        if (current.length == 0) {
+            return;
+        }
+
+        PayloadView view = new PayloadView(type, payload);
+        for (Mapping mapping : current) {
+            String value = view.get(mapping.field);
+            if (value != null) {
+                builder.setCustomDimension(mapping.index, value);
+            }
+        }
+    }
+
+    private static final class Mapping {
+
+        final PayloadField field;
+        final int index;
+
+        Mapping(PayloadField field, int index) {
+            this.field = field;
+            this.index = index;
+        }
+    }
+
+}
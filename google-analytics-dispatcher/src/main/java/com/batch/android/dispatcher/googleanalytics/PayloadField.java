@@ -0,0 +1,24 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+/**
+ * Batch payload fields that can be sent as Google Analytics custom dimensions
+ * See {@link GoogleAnalyticsDispatcher#setCustomDimension(android.content.Context, PayloadField, int)}
+ */
+public enum PayloadField {
+
+    /**
+     * Title of the notification, only for notification events
+     */
+    NOTIFICATION_TITLE,
+
+    /**
+     * Priority the push was delivered with ("high" or "normal"), only for notification events
+     */
+    PUSH_PRIORITY,
+
+    /**
+     * Format of the in-app message ("alert", "banner", "interstitial", ...), only for in-app events
+     */
+    IN_APP_FORMAT
+
+}
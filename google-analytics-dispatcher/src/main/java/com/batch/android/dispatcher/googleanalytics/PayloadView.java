@@ -0,0 +1,150 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchAlertMessageContent;
+import com.batch.android.BatchBannerMessageContent;
+import com.batch.android.BatchInAppMessage;
+import com.batch.android.BatchInterstitialMessageContent;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lazy view over a Batch event payload
+ * Push and in-app payload objects are only read the first time a field needs them,
+ * then reused for the other fields of the same event.
+ */
+final class PayloadView {
+
+    /**
+     * Push bundle keys, priorities are added by Firebase Cloud Messaging when delivering the push
+     */
+    private static final String PUSH_TITLE = "title";
+    private static final String PUSH_DELIVERED_PRIORITY = "google.delivered_priority";
+    private static final String PUSH_ORIGINAL_PRIORITY = "google.original_priority";
+
+    /**
+     * In-app content class name parts stripped to get the format name
+     */
+    private static final String CONTENT_CLASS_PREFIX = "Batch";
+    private static final String[] CONTENT_CLASS_SUFFIXES = {"MessageContent", "Content"};
+
+    /**
+     * Format names of content classes already seen
+     */
+    private static final Map<Class<?>, String> contentFormats = new ConcurrentHashMap<>();
+
+    private final Batch.EventDispatcher.Type type;
+    private final Batch.EventDispatcher.Payload payload;
+
+    private Bundle pushBundle;
+    private boolean pushBundleLoaded = false;
+
+    PayloadView(@NonNull Batch.EventDispatcher.Type type, @NonNull Batch.EventDispatcher.Payload payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    @Nullable
+    String get(@NonNull PayloadField field) {
+        switch (field) {
+            case NOTIFICATION_TITLE:
+                return getNotificationTitle();
+            case PUSH_PRIORITY:
+                return getPushPriority();
+            case IN_APP_FORMAT:
+                return getInAppFormat();
+        }
+        return null;
+    }
+
+    @Nullable
+    private String getNotificationTitle() {
+        Bundle bundle = getPushBundle();
+        if (bundle == null) {
+            return null;
+        }
+        return bundle.getString(PUSH_TITLE);
+    }
+
+    @Nullable
+    private String getPushPriority() {
+        Bundle bundle = getPushBundle();
+        if (bundle == null) {
+            return null;
+        }
+        String priority = bundle.getString(PUSH_DELIVERED_PRIORITY);
+        if (priority == null) {
+            priority = bundle.getString(PUSH_ORIGINAL_PRIORITY);
+        }
+        return priority;
+    }
+
+    @Nullable
+    private String getInAppFormat() {
+        if (!type.isMessagingEvent()) {
+            return null;
+        }
+        BatchMessage message = payload.getMessagingPayload();
+        if (!(message instanceof BatchInAppMessage)) {
+            return null;
+        }
+        BatchInAppMessage.Content content = ((BatchInAppMessage) message).getContent();
+        if (content == null) {
+            return null;
+        }
+        if (content instanceof BatchAlertMessageContent) {
+            return "alert";
+        } else if (content instanceof BatchBannerMessageContent) {
+            return "banner";
+        } else if (content instanceof BatchInterstitialMessageContent) {
+            return "interstitial";
+        }
+        return getFormatFromClass(content.getClass());
+    }
+
+    @Nullable
+    private Bundle getPushBundle() {
+        if (!pushBundleLoaded) {
+            pushBundleLoaded = true;
+            if (type.isNotificationEvent()) {
+                BatchPushPayload pushPayload = payload.getPushPayload();
+                if (pushPayload != null) {
+                    pushBundle = pushPayload.getPushBundle();
+                }
+            }
+        }
+        return pushBundle;
+    }
+
+    /**
+     * Derive a format name from content types added after this dispatcher, eg: BatchModalContent gives "modal"
+     */
+    private static String getFormatFromClass(Class<?> contentClass) {
+        String format = contentFormats.get(contentClass);
+        if (format == null) {
+            format = contentClass.getSimpleName();
+            if (format.startsWith(CONTENT_CLASS_PREFIX)) {
+                format = format.substring(CONTENT_CLASS_PREFIX.length());
+            }
+            for (String suffix : CONTENT_CLASS_SUFFIXES) {
+                if (format.endsWith(suffix) && format.length() > suffix.length()) {
+                    format = format.substring(0, format.length() - suffix.length());
+                    break;
+                }
+            }
+            format = format.toLowerCase(Locale.US);
+            contentFormats.put(contentClass, format);
+        }
+        return format;
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs dispatch work on N single-threaded lanes
+ * Tasks are assigned to a lane from the hash of their partition key (the campaign name),
+ * so tasks sharing a key run in submission order while other keys run in parallel.
+ * Tasks without a key have no order to keep, they are spread over the lanes in turn.
+ * Each lane has its own bounded lock-free queue. Lanes never steal work from each other,
+ * on shutdown each lane runs what it already accepted then stops.
+ * A task is never run outside of its lane: when the lane is full, {@link #submit(String, Runnable)}
+ * waits for room instead, so the task can't overtake the ones already queued for its key.
+ */
+final class StripedDispatchExecutor {
+
+    /**
+     * Default maximum number of pending tasks per lane
+     */
+    static final int DEFAULT_LANE_CAPACITY = 256;
+
+    private static final String THREAD_NAME_PREFIX = "batch-ga-dispatcher-";
+
+    /**
+     * Longest a producer parks before checking its full lane again, in case its wakeup was missed
+     */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Lane[] lanes;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicInteger nextUnkeyedLane = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    StripedDispatchExecutor(int laneCount, int laneCapacity) {
+        lanes = new Lane[Math.max(laneCount, 1)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(THREAD_NAME_PREFIX + i, Math.max(laneCapacity, 1));
+            lanes[i].start();
+        }
+    }
+
+    /**
+     * Queue a task on the lane of its partition key, waiting for room if the lane is full
+     * Slows the caller down instead of dropping the task or running it out of order.
+     *
+     * @param partitionKey Tasks with equal keys run in order, null if the task has no order to keep
+     * @param task The task to run
+     * @return false if the executor shut down, the task was not queued
+     */
+    boolean submit(@Nullable String partitionKey, @NonNull Runnable task) {
+        Lane lane = lanes[laneIndex(partitionKey)];
+        boolean waited = false;
+        while (!shutdown) {
+            if (lane.reserve()) {
+                if (shutdown) {
+                    // Raced with shutdown: the lane may already be waiting for its reserved slots to drain
+                    lane.release();
+                    break;
+                }
+                lane.offer(task);
+                return true;
+            }
+            if (!waited) {
+                waited = true;
+                waitCount.incrementAndGet();
+            }
+            lane.awaitRoom();
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    int laneIndex(@Nullable String partitionKey) {
+        if (partitionKey == null) {
+            return (nextUnkeyedLane.getAndIncrement() & 0x7fffffff) % lanes.length;
+        }
+        int hash = partitionKey.hashCode();
+        // Spread the hash so keys differing only in their last characters don't share lanes
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return Number of pending tasks on each lane
+     */
+    int[] getLaneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].depth.get();
+        }
+        return depths;
+    }
+
+    /**
+     * @return Number of tasks refused because the executor shut down
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return Number of submitted tasks that had to wait for room on their lane
+     */
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Stop accepting tasks, each lane runs its pending tasks then stops
+     */
+    void shutdown() {
+        shutdown = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane);
+            lane.signalRoom();
+        }
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Wait for every lane to stop after {@link #shutdown()}
+     *
+     * @return false if the timeout elapsed before all lanes stopped
+     */
+    boolean awaitTermination(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                break;
+            }
+            lane.join(remainingMillis);
+        }
+        return isTerminated();
+    }
+
+    private boolean isTerminated() {
+        for (Lane lane : lanes) {
+            if (lane.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final class Lane extends Thread {
+
+        private final int capacity;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Producers waiting for room on this lane
+         */
+        private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Pending tasks, including slots reserved by producers that did not offer their task yet
+         */
+        final AtomicInteger depth = new AtomicInteger();
+
+        Lane(String name, int capacity) {
+            super(name);
+            this.capacity = capacity;
+            setDaemon(true);
+        }
+
+        boolean reserve() {
+            while (true) {
+                int current = depth.get();
+                if (current >= capacity) {
+                    return false;
+                }
+                if (depth.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            depth.decrementAndGet();
+            LockSupport.unpark(this);
+            signalRoom();
+        }
+
+        void offer(Runnable task) {
+            queue.offer(task);
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Park the calling producer until a task of this lane completes, or for a short while
+         */
+        void awaitRoom() {
+            Thread current = Thread.currentThread();
+            waiters.offer(current);
+            // Checked again once registered, so a slot freed in between is not missed
+            if (depth.get() >= capacity && !shutdown) {
+                LockSupport.parkNanos(this, MAX_WAIT_NANOS);
+            }
+            waiters.remove(current);
+        }
+
+        void signalRoom() {
+            for (Thread waiter : waiters) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    depth.decrementAndGet();
+                    if (!waiters.isEmpty()) {
+                        signalRoom();
+                    }
+                    runSafely(task);
+                    continue;
+                }
+                if (shutdown && depth.get() == 0) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+        }
+
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing hit must not stop the lane and the campaigns sharing it
+            }
+        }
+    }
+
+}
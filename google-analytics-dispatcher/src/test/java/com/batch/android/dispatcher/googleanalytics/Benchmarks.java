@@ -0,0 +1,28 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import org.junit.Assume;
+
+/**
+ * Gate and output of the benchmarks
+ * Wall-clock measurements are too noisy on shared CI runners to assert on: benchmarks only report
+ * their results, and are skipped unless the tests run with the benchmark property, eg: make benchmark.
+ */
+final class Benchmarks {
+
+    /**
+     * System property enabling the benchmarks, set by Gradle when run with -Pbenchmark
+     */
+    static final String PROPERTY = "batch.benchmark";
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks are disabled, run make benchmark", Boolean.getBoolean(PROPERTY));
+    }
+
+    static void report(String name, String result) {
+        System.out.println("[benchmark] " + name + ": " + result);
+    }
+
+}
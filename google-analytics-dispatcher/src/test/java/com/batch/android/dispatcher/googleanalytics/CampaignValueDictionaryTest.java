@@ -0,0 +1,107 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the campaign value dictionary
+ * Equal values should resolve to a single instance while the dictionary stays bounded
+ */
+public class CampaignValueDictionaryTest {
+
+    @Test
+    public void testResolveSharesInstances() {
+        CampaignValueDictionary dictionary = new CampaignValueDictionary(16);
+
+        String first = dictionary.resolve(new String("yoloswag"));
+        String second = dictionary.resolve(new String("yoloswag"));
+        Assert.assertSame(first, second);
+
+        // Well known values resolve to the literals used by the dispatcher
+        Assert.assertSame("batch", dictionary.resolve(new String("batch")));
+        Assert.assertSame("in-app", dictionary.resolve(new String("in-app")));
+
+        Assert.assertNull(dictionary.resolve(null));
+    }
+
+    @Test
+    public void testStats() {
+        CampaignValueDictionary dictionary = new CampaignValueDictionary(16);
+        Assert.assertEquals(0, dictionary.getHitRate(), 0);
+
+        dictionary.resolve(new String("campaign01"));
+        dictionary.resolve(new String("campaign01"));
+        dictionary.resolve(new String("campaign01"));
+        dictionary.resolve(new String("push"));
+
+        Assert.assertEquals(1, dictionary.getMissCount());
+        Assert.assertEquals(3, dictionary.getHitCount());
+        Assert.assertEquals(0.75, dictionary.getHitRate(), 0.0001);
+        Assert.assertTrue(dictionary.getSavedBytes() > 0);
+
+        CampaignValueStats stats = dictionary.getStats();
+        Assert.assertEquals(3, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(0.75, stats.getHitRate(), 0.0001);
+        Assert.assertEquals(dictionary.getSavedBytes(), stats.getSavedBytes());
+        Assert.assertEquals(4, stats.getSize());
+    }
+
+    @Test
+    public void testShrink() {
+        CampaignValueDictionary dictionary = new CampaignValueDictionary(16);
+        long initialFootprint = dictionary.getFootprintBytes();
+        Assert.assertTrue(initialFootprint > 0);
+
+        dictionary.resolve("campaign01");
+        dictionary.resolve("campaign02");
+        Assert.assertTrue(dictionary.getFootprintBytes() > initialFootprint);
+
+        dictionary.shrink(initialFootprint);
+        Assert.assertTrue(dictionary.getFootprintBytes() <= initialFootprint);
+
+        dictionary.shrink(0);
+        Assert.assertEquals(0, dictionary.size());
+        Assert.assertEquals(0, dictionary.getFootprintBytes());
+
+        // Values resolve again once the dictionary was cleared
+        String value = dictionary.resolve("batch");
+        Assert.assertSame(value, dictionary.resolve(new String("batch")));
+    }
+
+    @Test
+    public void testBounded() {
+        CampaignValueDictionary dictionary = new CampaignValueDictionary(4);
+        String kept = dictionary.resolve("kept");
+
+        for (int i = 0; i < 100; i++) {
+            dictionary.resolve(kept);
+            dictionary.resolve("campaign" + i);
+            Assert.assertTrue(dictionary.size() <= 4);
+        }
+
+        // The value being read all along must not have been evicted
+        Assert.assertSame(kept, dictionary.resolve(new String("kept")));
+    }
+
+    @Test
+    public void testEvictionReusesSlots() {
+        CampaignValueDictionary dictionary = new CampaignValueDictionary(8);
+        long initialFootprint = dictionary.getFootprintBytes();
+
+        // Values that are never read again are evicted first, whatever their position
+        for (int i = 0; i < 10000; i++) {
+            dictionary.resolve("campaign" + i);
+            Assert.assertTrue(dictionary.size() <= 8);
+        }
+
+        dictionary.shrink(0);
+        Assert.assertEquals(0, dictionary.size());
+        for (int i = 0; i < 8; i++) {
+            dictionary.resolve("campaign" + i);
+        }
+        Assert.assertEquals(8, dictionary.size());
+        Assert.assertTrue(dictionary.getFootprintBytes() > initialFootprint);
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+import com.google.android.gms.analytics.GoogleAnalytics;
+import com.google.android.gms.analytics.Tracker;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the dispatcher memory budget under simulated trim levels
+ * The footprint should stay within the target of each level and pending hits should never be dropped
+ * Spilled hits are written and read back on the journal executor, tests wait for it before checking sent hits.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@PowerMockIgnore({"org.powermock.*", "org.mockito.*", "org.robolectric.*", "android.*", "androidx.*"})
+@PrepareForTest(GoogleAnalytics.class)
+public class DispatcherMemoryBudgetTest {
+
+    private static final long BUDGET_BYTES = 16 * 1024;
+
+    @Rule
+    public PowerMockRule rule = new PowerMockRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Context context;
+    private Set<String> sentCampaigns;
+    private GoogleAnalyticsDispatcher googleAnalyticsDispatcher;
+    private ComponentCallbacks2 callbacks;
+    private int dispatchedCount = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        context = PowerMockito.mock(Context.class);
+        Mockito.when(context.getFilesDir()).thenReturn(temporaryFolder.newFolder());
+        GoogleAnalytics googleAnalytics = PowerMockito.mock(GoogleAnalytics.class);
+        Tracker tracker = PowerMockito.mock(Tracker.class);
+
+        sentCampaigns = new HashSet<>();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                sentCampaigns.add(((Map<String, String>) invocation.getArguments()[0]).get("&cn"));
+                return null;
+            }
+        }).when(tracker).send(Mockito.<String, String>anyMap());
+
+        PowerMockito.mockStatic(GoogleAnalytics.class);
+        Mockito.when(GoogleAnalytics.getInstance(context)).thenReturn(googleAnalytics);
+        Mockito.when(googleAnalytics.newTracker(Mockito.anyInt())).thenReturn(tracker);
+
+        googleAnalyticsDispatcher = new GoogleAnalyticsDispatcher(context);
+        googleAnalyticsDispatcher.setTrackingId(0);
+        googleAnalyticsDispatcher.getMemoryBudget().setBudgetBytes(BUDGET_BYTES);
+        googleAnalyticsDispatcher.setFlushPolicy(10000, TimeUnit.HOURS.toMillis(1));
+
+        ArgumentCaptor<ComponentCallbacks> captor = ArgumentCaptor.forClass(ComponentCallbacks.class);
+        Mockito.verify(context).registerComponentCallbacks(captor.capture());
+        callbacks = (ComponentCallbacks2) captor.getValue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        googleAnalyticsDispatcher.flush();
+        awaitJournal(googleAnalyticsDispatcher);
+    }
+
+    @Test
+    public void testStaysWithinBudget() throws Exception {
+        DispatcherMemoryBudget budget = googleAnalyticsDispatcher.getMemoryBudget();
+        for (int i = 0; i < 500; i++) {
+            dispatch();
+            Assert.assertTrue(budget.getFootprintBytes() <= BUDGET_BYTES);
+        }
+
+        // Over budget, pending hits were spilled instead of being dropped
+        googleAnalyticsDispatcher.flush();
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertEquals(dispatchedCount, sentCampaigns.size());
+    }
+
+    @Test
+    public void testOverBudgetSpillsInBatches() throws Exception {
+        DispatcherMemoryBudget budget = googleAnalyticsDispatcher.getMemoryBudget();
+        CampaignValueDictionary dictionary = googleAnalyticsDispatcher.getValueDictionary();
+        long lowWaterBytes = BUDGET_BYTES * DispatcherMemoryBudget.LOW_WATER_PERCENT / 100;
+        int spillCount = 0;
+
+        long previousFootprint = 0;
+        for (int i = 0; i < 500; i++) {
+            dispatch("campaign" + (i % 4));
+            long footprint = budget.getFootprintBytes();
+            if (footprint < previousFootprint) {
+                // Spilled down to the low-water mark, not just below the budget
+                Assert.assertTrue(footprint <= lowWaterBytes);
+                spillCount++;
+            }
+            previousFootprint = footprint;
+        }
+        Assert.assertTrue(spillCount > 0);
+        Assert.assertTrue(spillCount < 500 / 4);
+
+        // The campaign values fit in the budget: they were never evicted and looked up again
+        Assert.assertEquals(4, dictionary.getMissCount());
+
+        googleAnalyticsDispatcher.flush();
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertEquals(4, sentCampaigns.size());
+    }
+
+    @Test
+    public void testNextProcessSendsJournaledHits() throws Exception {
+        fillBudget();
+        callbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        Assert.assertEquals(0, googleAnalyticsDispatcher.getMemoryBudget().getFootprintBytes());
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertTrue(sentCampaigns.isEmpty());
+
+        // The next process sends spilled hits once its tracker is set, without a flush policy
+        GoogleAnalyticsDispatcher nextDispatcher = new GoogleAnalyticsDispatcher(context);
+        nextDispatcher.setTrackingId(0);
+        awaitJournal(nextDispatcher);
+        Assert.assertEquals(dispatchedCount, sentCampaigns.size());
+    }
+
+    @Test
+    public void testRunningTrimLevels() throws Exception {
+        int[] levels = {
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+        };
+        DispatcherMemoryBudget budget = googleAnalyticsDispatcher.getMemoryBudget();
+
+        for (int level : levels) {
+            fillBudget();
+            callbacks.onTrimMemory(level);
+            Assert.assertTrue("Over target at level " + level,
+                    budget.getFootprintBytes() <= budget.getTargetBytes(level));
+        }
+
+        // Running levels never send on their own: spilled hits are sent with the next flush
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertTrue(sentCampaigns.isEmpty());
+        googleAnalyticsDispatcher.flush();
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertEquals(dispatchedCount, sentCampaigns.size());
+    }
+
+    @Test
+    public void testBackgroundTrimLevels() throws Exception {
+        int[] levels = {
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND,
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE,
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+        };
+        DispatcherMemoryBudget budget = googleAnalyticsDispatcher.getMemoryBudget();
+
+        for (int level : levels) {
+            fillBudget();
+            callbacks.onTrimMemory(level);
+            Assert.assertTrue("Over target at level " + level,
+                    budget.getFootprintBytes() <= budget.getTargetBytes(level));
+            // Going to the background flushes pending hits
+            awaitJournal(googleAnalyticsDispatcher);
+            Assert.assertEquals(dispatchedCount, sentCampaigns.size());
+        }
+
+        fillBudget();
+        callbacks.onLowMemory();
+        Assert.assertEquals(0, budget.getFootprintBytes());
+        awaitJournal(googleAnalyticsDispatcher);
+        Assert.assertEquals(dispatchedCount, sentCampaigns.size());
+    }
+
+    @Test
+    public void testJournalLocatedOnJournalThread() throws Exception {
+        awaitJournal(googleAnalyticsDispatcher);
+        final File filesDir = temporaryFolder.newFolder();
+        final List<String> callingThreads = Collections.synchronizedList(new ArrayList<String>());
+        Mockito.when(context.getFilesDir()).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) {
+                callingThreads.add(Thread.currentThread().getName());
+                return filesDir;
+            }
+        });
+
+        // Getting the files directory may create it on disk, the thread building the dispatcher never does
+        GoogleAnalyticsDispatcher dispatcher = new GoogleAnalyticsDispatcher(context);
+        dispatcher.setTrackingId(0);
+        awaitJournal(dispatcher);
+        Assert.assertFalse(callingThreads.isEmpty());
+        for (String thread : callingThreads) {
+            Assert.assertEquals("batch-ga-journal", thread);
+        }
+    }
+
+    /**
+     * Wait for the journal reads and writes queued so far
+     */
+    private static void awaitJournal(GoogleAnalyticsDispatcher dispatcher)
+            throws ExecutionException, InterruptedException
+    {
+        dispatcher.getJournalExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private void fillBudget() {
+        DispatcherMemoryBudget budget = googleAnalyticsDispatcher.getMemoryBudget();
+        while (budget.getFootprintBytes() < BUDGET_BYTES * 3 / 4) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        dispatch("campaign" + dispatchedCount);
+    }
+
+    private void dispatch(String campaign) {
+        Bundle customPayload = new Bundle();
+        customPayload.putString("utm_campaign", campaign);
+        dispatchedCount++;
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new TestEventPayload(customPayload));
+    }
+
+    private static class TestEventPayload implements Batch.EventDispatcher.Payload {
+
+        private Bundle customPayload;
+
+        TestEventPayload(Bundle customPayload)
+        {
+            this.customPayload = customPayload;
+        }
+
+        @Nullable
+        @Override
+        public String getTrackingId()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getDeeplink()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getCustomValue(@NonNull String key)
+        {
+            return customPayload.getString(key);
+        }
+
+        @Override
+        public boolean isPositiveAction() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public BatchMessage getMessagingPayload()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public BatchPushPayload getPushPayload()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,344 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+import com.google.android.gms.analytics.GoogleAnalytics;
+import com.google.android.gms.analytics.Tracker;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress the dispatcher shared state from several threads
+ * Every round releases all threads at once on a barrier to maximize contention,
+ * then checks the outcome is one of the allowed results (jcstress style).
+ * The throughput benchmark reports how dispatching scales with the number of threads, see {@link Benchmarks}.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@PowerMockIgnore({"org.powermock.*", "org.mockito.*", "org.robolectric.*", "android.*", "androidx.*"})
+@PrepareForTest(GoogleAnalytics.class)
+public class GoogleAnalyticsDispatcherConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+    private static final int EVENTS_PER_THREAD = 2000;
+    private static final int EVENTS_DURING_INITIALIZATION = 50;
+
+    private static final int[] BENCHMARK_THREADS = {1, 2, 4, 8};
+    private static final int BENCHMARK_RUNS = 3;
+
+    /**
+     * More campaigns than the dictionary capacity, so that the benchmark covers evictions
+     */
+    private static final int BENCHMARK_CAMPAIGNS = 4 * CampaignValueDictionary.DEFAULT_CAPACITY;
+
+    @Rule
+    public PowerMockRule rule = new PowerMockRule();
+    private Context context;
+    private GoogleAnalytics googleAnalytics;
+    private AtomicLong sentHits;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        context = PowerMockito.mock(Context.class);
+        googleAnalytics = PowerMockito.mock(GoogleAnalytics.class);
+        sentHits = new AtomicLong();
+
+        // Stub only tracker: recording invocations would serialize the dispatching threads
+        Tracker tracker = Mockito.mock(Tracker.class, Mockito.withSettings().stubOnly());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sentHits.incrementAndGet();
+                return null;
+            }
+        }).when(tracker).send(Mockito.<String, String>anyMap());
+
+        PowerMockito.mockStatic(GoogleAnalytics.class);
+        Mockito.when(GoogleAnalytics.getInstance(context)).thenReturn(googleAnalytics);
+        Mockito.when(googleAnalytics.newTracker(Mockito.anyString())).thenReturn(tracker);
+
+        executor = Executors.newFixedThreadPool(THREADS);
+        GoogleAnalyticsRegistrar.clearInstance();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        GoogleAnalyticsRegistrar.clearInstance();
+    }
+
+    @Test
+    public void testRegistrarConcurrentCreation() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            GoogleAnalyticsRegistrar.clearInstance();
+            List<GoogleAnalyticsDispatcher> results = runConcurrently(THREADS, new Callable<GoogleAnalyticsDispatcher>() {
+                @Override
+                public GoogleAnalyticsDispatcher call() {
+                    return GoogleAnalyticsRegistrar.getInstance(context);
+                }
+            });
+
+            GoogleAnalyticsDispatcher expected = GoogleAnalyticsRegistrar.getInstance(context);
+            for (GoogleAnalyticsDispatcher result : results) {
+                Assert.assertSame(expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void testTrackerConcurrentInitialization() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final GoogleAnalyticsDispatcher dispatcher = new GoogleAnalyticsDispatcher(context);
+            runConcurrently(THREADS, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    dispatcher.setTrackingId("UA-STRESS");
+                    return null;
+                }
+            });
+        }
+        // Exactly one tracker per dispatcher, whatever the interleaving
+        Mockito.verify(googleAnalytics, Mockito.times(ROUNDS)).newTracker("UA-STRESS");
+    }
+
+    @Test
+    public void testDispatchDuringTrackerInitialization() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            sentHits.set(0);
+            final GoogleAnalyticsDispatcher dispatcher = new GoogleAnalyticsDispatcher(context);
+            final AtomicBoolean trackerSet = new AtomicBoolean(false);
+            List<Long> results = runConcurrently(THREADS, new Callable<Long>() {
+                private final AtomicLong index = new AtomicLong();
+
+                @Override
+                public Long call() {
+                    if (index.getAndIncrement() == 0) {
+                        dispatcher.setTrackingId("UA-STRESS");
+                        trackerSet.set(true);
+                        return 0L;
+                    }
+                    long dispatchedAfterInitialization = 0;
+                    for (int i = 0; i < EVENTS_DURING_INITIALIZATION; i++) {
+                        boolean afterInitialization = trackerSet.get();
+                        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, newPayload(i));
+                        if (afterInitialization) {
+                            dispatchedAfterInitialization++;
+                        }
+                    }
+                    return dispatchedAfterInitialization;
+                }
+            });
+
+            // Events dispatched once setTrackingId returned must all be sent,
+            // earlier ones either see no tracker and are skipped, or are sent
+            long mustBeSent = 0;
+            for (Long dispatchedAfterInitialization : results) {
+                mustBeSent += dispatchedAfterInitialization;
+            }
+            long sent = sentHits.get();
+            Assert.assertTrue("Lost hits: " + sent + " sent, " + mustBeSent + " expected", sent >= mustBeSent);
+            Assert.assertTrue(sent <= (long) (THREADS - 1) * EVENTS_DURING_INITIALIZATION);
+        }
+    }
+
+    @Test
+    public void testConcurrentDispatch() throws Exception {
+        GoogleAnalyticsDispatcher dispatcher = newDispatcher();
+        runDispatch(dispatcher, THREADS, 16);
+        Assert.assertEquals((long) THREADS * EVENTS_PER_THREAD, sentHits.get());
+    }
+
+    @Test
+    public void testConcurrentDispatchWithFlushPolicy() throws Exception {
+        GoogleAnalyticsDispatcher dispatcher = newDispatcher();
+        dispatcher.setFlushPolicy(50, TimeUnit.HOURS.toMillis(1));
+        runDispatch(dispatcher, THREADS, 16);
+        dispatcher.flush();
+        Assert.assertEquals((long) THREADS * EVENTS_PER_THREAD, sentHits.get());
+    }
+
+    @Test
+    public void benchmarkDispatchThroughput() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        // Warm up the dispatch path before measuring
+        runDispatch(newDispatcher(), THREADS, BENCHMARK_CAMPAIGNS);
+
+        for (boolean flushPolicy : new boolean[]{false, true}) {
+            double singleThreadThroughput = 0;
+            for (int threads : BENCHMARK_THREADS) {
+                double throughput = measureThroughput(threads, flushPolicy);
+                if (threads == 1) {
+                    singleThreadThroughput = throughput;
+                }
+                Benchmarks.report("dispatch, flush policy " + flushPolicy + ", " + threads + " threads",
+                        String.format(Locale.US, "%.1f events/ms, speed-up %.2f",
+                                throughput, throughput / singleThreadThroughput));
+            }
+        }
+    }
+
+    /**
+     * @return Best throughput of a few runs, in events per millisecond
+     */
+    private double measureThroughput(int threads, boolean flushPolicy) throws Exception {
+        double bestThroughput = 0;
+        for (int run = 0; run < BENCHMARK_RUNS; run++) {
+            sentHits.set(0);
+            GoogleAnalyticsDispatcher dispatcher = newDispatcher();
+            if (flushPolicy) {
+                dispatcher.setFlushPolicy(50, TimeUnit.HOURS.toMillis(1));
+            }
+            long elapsedNanos = runDispatch(dispatcher, threads, BENCHMARK_CAMPAIGNS);
+            dispatcher.release();
+            Assert.assertEquals((long) threads * EVENTS_PER_THREAD, sentHits.get());
+            bestThroughput = Math.max(bestThroughput, sentHits.get() * 1e6 / elapsedNanos);
+        }
+        return bestThroughput;
+    }
+
+    private GoogleAnalyticsDispatcher newDispatcher() {
+        GoogleAnalyticsDispatcher dispatcher = new GoogleAnalyticsDispatcher(context);
+        dispatcher.setTrackingId("UA-STRESS");
+        return dispatcher;
+    }
+
+    /**
+     * Dispatch EVENTS_PER_THREAD events from each thread, over the given number of campaigns
+     *
+     * @return Elapsed time in nanoseconds
+     */
+    private long runDispatch(final GoogleAnalyticsDispatcher dispatcher, int threads, final int campaigns) throws Exception {
+        final Batch.EventDispatcher.Type[] types = Batch.EventDispatcher.Type.values();
+        long start = System.nanoTime();
+        runConcurrently(threads, new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                    dispatcher.dispatchEvent(types[i % types.length], newPayload(i % campaigns));
+                }
+                return null;
+            }
+        });
+        return System.nanoTime() - start;
+    }
+
+    private <T> List<T> runConcurrently(int threads, final Callable<T> task) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    barrier.await();
+                    return task.call();
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get(30, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    private static Batch.EventDispatcher.Payload newPayload(int campaign) {
+        Bundle customPayload = new Bundle();
+        customPayload.putString("utm_campaign", "campaign" + campaign);
+        return new StressEventPayload("tracking" + campaign,
+                "https://batch.com?utm_source=batchsdk&utm_content=button" + campaign,
+                customPayload);
+    }
+
+    private static class StressEventPayload implements Batch.EventDispatcher.Payload {
+
+        private String trackingId;
+        private String deeplink;
+        private Bundle customPayload;
+
+        StressEventPayload(String trackingId, String deeplink, Bundle customPayload)
+        {
+            this.trackingId = trackingId;
+            this.deeplink = deeplink;
+            this.customPayload = customPayload;
+        }
+
+        @Nullable
+        @Override
+        public String getTrackingId()
+        {
+            return trackingId;
+        }
+
+        @Nullable
+        @Override
+        public String getDeeplink()
+        {
+            return deeplink;
+        }
+
+        @Nullable
+        @Override
+        public String getCustomValue(@NonNull String key)
+        {
+            return customPayload.getString(key);
+        }
+
+        @Override
+        public boolean isPositiveAction() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public BatchMessage getMessagingPayload()
+        {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public BatchPushPayload getPushPayload()
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchAlertMessageContent;
+import com.batch.android.BatchInAppMessage;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+import com.google.android.gms.analytics.GoogleAnalytics;
+import com.google.android.gms.analytics.Tracker;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Test the payload enrichment into custom dimensions
+ * Payload objects should only be read for configured fields
+ * The cost benchmark reports dispatching with enrichment off and on, see {@link Benchmarks}.
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@PowerMockIgnore({"org.powermock.*", "org.mockito.*", "org.robolectric.*", "android.*", "androidx.*"})
+@PrepareForTest({GoogleAnalytics.class, BatchPushPayload.class, BatchInAppMessage.class, BatchAlertMessageContent.class})
+public class GoogleAnalyticsDispatcherEnrichmentTest {
+
+    private static final int BENCHMARK_EVENTS = 20000;
+    private static final int BENCHMARK_RUNS = 3;
+
+    @Rule
+    public PowerMockRule rule = new PowerMockRule();
+    private Map<String, String> lastHit;
+    private GoogleAnalyticsDispatcher googleAnalyticsDispatcher;
+    private BatchPushPayload pushPayload;
+    private BatchInAppMessage inAppMessage;
+
+    @Before
+    public void setUp() {
+        Context context = PowerMockito.mock(Context.class);
+        GoogleAnalytics googleAnalytics = PowerMockito.mock(GoogleAnalytics.class);
+        // Stub only tracker keeping the last hit: the benchmark would record thousands of invocations
+        Tracker tracker = Mockito.mock(Tracker.class, Mockito.withSettings().stubOnly());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                lastHit = (Map<String, String>) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(tracker).send(Mockito.<String, String>anyMap());
+
+        PowerMockito.mockStatic(GoogleAnalytics.class);
+        Mockito.when(GoogleAnalytics.getInstance(context)).thenReturn(googleAnalytics);
+        Mockito.when(googleAnalytics.newTracker(Mockito.anyInt())).thenReturn(tracker);
+
+        Bundle pushBundle = new Bundle();
+        pushBundle.putString("title", "Flash sale");
+        pushBundle.putString("msg", "Everything must go");
+        pushBundle.putString("google.original_priority", "high");
+        pushBundle.putString("google.delivered_priority", "normal");
+        pushPayload = PowerMockito.mock(BatchPushPayload.class);
+        Mockito.when(pushPayload.getPushBundle()).thenReturn(pushBundle);
+
+        BatchAlertMessageContent content = PowerMockito.mock(BatchAlertMessageContent.class);
+        inAppMessage = PowerMockito.mock(BatchInAppMessage.class);
+        Mockito.when(inAppMessage.getContent()).thenReturn(content);
+
+        googleAnalyticsDispatcher = new GoogleAnalyticsDispatcher(context);
+        googleAnalyticsDispatcher.setTrackingId(0);
+    }
+
+    @Test
+    public void testNoEnrichmentDoesNotReadPayload() {
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
+
+        Assert.assertEquals(0, payload.pushPayloadReads);
+        Assert.assertEquals(0, payload.messagingPayloadReads);
+        Assert.assertFalse(sentHit().containsKey("&cd1"));
+    }
+
+    @Test
+    public void testNotificationEnrichment() {
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, 3);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.PUSH_PRIORITY, 4);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.IN_APP_FORMAT, 5);
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+
+        Map<String, String> hit = sentHit();
+        Assert.assertEquals("Flash sale", hit.get("&cd3"));
+        Assert.assertEquals("normal", hit.get("&cd4"));
+        Assert.assertFalse(hit.containsKey("&cd5"));
+        // Both push fields come from a single read of the push payload
+        Assert.assertEquals(1, payload.pushPayloadReads);
+        Assert.assertEquals(0, payload.messagingPayloadReads);
+    }
+
+    @Test
+    public void testInAppEnrichment() {
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, 3);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.IN_APP_FORMAT, 5);
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload);
+
+        Map<String, String> hit = sentHit();
+        Assert.assertEquals("alert", hit.get("&cd5"));
+        Assert.assertFalse(hit.containsKey("&cd3"));
+        Assert.assertEquals(0, payload.pushPayloadReads);
+    }
+
+    @Test
+    public void testRemoveCustomDimension() {
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, 3);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, 7);
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+        Map<String, String> hit = sentHit();
+        Assert.assertFalse(hit.containsKey("&cd3"));
+        Assert.assertEquals("Flash sale", hit.get("&cd7"));
+
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, 0);
+        payload = new CountingEventPayload(pushPayload, inAppMessage);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+        Assert.assertEquals(0, payload.pushPayloadReads);
+    }
+
+    @Test
+    public void testInvalidCustomDimensionIndex() {
+        int[] invalidIndexes = {-1, PayloadEnricher.MAX_CUSTOM_DIMENSION_INDEX + 1, Integer.MIN_VALUE};
+        for (int index : invalidIndexes) {
+            try {
+                googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, index);
+                Assert.fail("Index " + index + " should be rejected");
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+
+        // A rejected index leaves the configuration untouched
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, PayloadEnricher.MAX_CUSTOM_DIMENSION_INDEX);
+        try {
+            googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, -1);
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new CountingEventPayload(pushPayload, inAppMessage));
+        Assert.assertEquals("Flash sale", sentHit().get("&cd" + PayloadEnricher.MAX_CUSTOM_DIMENSION_INDEX));
+    }
+
+    @Test
+    public void testEnrichmentPayloadReads() {
+        Batch.EventDispatcher.Type[] types = Batch.EventDispatcher.Type.values();
+        int notificationEvents = 0;
+        int messagingEvents = 0;
+        for (Batch.EventDispatcher.Type type : types) {
+            if (type.isNotificationEvent()) {
+                notificationEvents++;
+            } else if (type.isMessagingEvent()) {
+                messagingEvents++;
+            }
+        }
+
+        // Enabled, each payload object is read once per event of its kind, whatever the number of fields
+        configureAllFields(3);
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+        dispatchAllTypes(payload, 10);
+        Assert.assertEquals(10 * notificationEvents, payload.pushPayloadReads);
+        Assert.assertEquals(10 * messagingEvents, payload.messagingPayloadReads);
+
+        // Once removed, enrichment doesn't read anything again
+        configureAllFields(0);
+        payload = new CountingEventPayload(pushPayload, inAppMessage);
+        dispatchAllTypes(payload, 10);
+        Assert.assertEquals(0, payload.pushPayloadReads);
+        Assert.assertEquals(0, payload.messagingPayloadReads);
+    }
+
+    @Test
+    public void benchmarkEnrichmentCost() {
+        Benchmarks.assumeEnabled();
+        CountingEventPayload payload = new CountingEventPayload(pushPayload, inAppMessage);
+
+        // Warm up both paths before measuring
+        measureDispatch(payload);
+        configureAllFields(3);
+        measureDispatch(payload);
+        configureAllFields(0);
+
+        long offNanos = measureDispatch(payload);
+        configureAllFields(3);
+        long onNanos = measureDispatch(payload);
+        configureAllFields(0);
+        long removedNanos = measureDispatch(payload);
+
+        Benchmarks.report("enrichment off", formatNanosPerEvent(offNanos));
+        Benchmarks.report("enrichment on, 3 fields", formatNanosPerEvent(onNanos)
+                + String.format(Locale.US, ", %.2fx off", (double) onNanos / offNanos));
+        Benchmarks.report("enrichment removed", formatNanosPerEvent(removedNanos)
+                + String.format(Locale.US, ", %.2fx off", (double) removedNanos / offNanos));
+    }
+
+    private static String formatNanosPerEvent(long nanos) {
+        return (nanos / BENCHMARK_EVENTS) + " ns/event";
+    }
+
+    private void dispatchAllTypes(Batch.EventDispatcher.Payload payload, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (Batch.EventDispatcher.Type type : Batch.EventDispatcher.Type.values()) {
+                googleAnalyticsDispatcher.dispatchEvent(type, payload);
+            }
+        }
+    }
+
+    private void configureAllFields(int firstIndex) {
+        int step = firstIndex == 0 ? 0 : 1;
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.NOTIFICATION_TITLE, firstIndex);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.PUSH_PRIORITY, firstIndex + step);
+        googleAnalyticsDispatcher.setCustomDimension(PayloadField.IN_APP_FORMAT, firstIndex + 2 * step);
+    }
+
+    /**
+     * @return Best time of a few runs dispatching BENCHMARK_EVENTS events, in nanoseconds
+     */
+    private long measureDispatch(Batch.EventDispatcher.Payload payload) {
+        Batch.EventDispatcher.Type[] types = Batch.EventDispatcher.Type.values();
+        long bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < BENCHMARK_RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_EVENTS; i++) {
+                googleAnalyticsDispatcher.dispatchEvent(types[i % types.length], payload);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        return bestNanos;
+    }
+
+    private Map<String, String> sentHit() {
+        Assert.assertNotNull(lastHit);
+        return lastHit;
+    }
+
+    private static class CountingEventPayload implements Batch.EventDispatcher.Payload {
+
+        private BatchPushPayload pushPayload;
+        private BatchMessage messagingPayload;
+        int pushPayloadReads = 0;
+        int messagingPayloadReads = 0;
+
+        CountingEventPayload(BatchPushPayload pushPayload, BatchMessage messagingPayload)
+        {
+            this.pushPayload = pushPayload;
+            this.messagingPayload = messagingPayload;
+        }
+
+        @Nullable
+        @Override
+        public String getTrackingId()
+        {
+            return "jesuisunid";
+        }
+
+        @Nullable
+        @Override
+        public String getDeeplink()
+        {
+            return "https://batch.com?utm_campaign=yoloswag";
+        }
+
+        @Nullable
+        @Override
+        public String getCustomValue(@NonNull String key)
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isPositiveAction() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public BatchMessage getMessagingPayload()
+        {
+            messagingPayloadReads++;
+            return messagingPayload;
+        }
+
+        @Nullable
+        @Override
+        public BatchPushPayload getPushPayload()
+        {
+            pushPayloadReads++;
+            return pushPayload;
+        }
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.batch.android.dispatcher.googleanalytics;
 
 
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
@@ -15,20 +17,30 @@ import com.batch.android.BatchPushPayload;
 import com.google.android.gms.analytics.GoogleAnalytics;
 import com.google.android.gms.analytics.Tracker;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test the Google Analytics Event Dispatcher implementation
@@ -41,6 +53,8 @@ import java.util.Map;
 @PrepareForTest(GoogleAnalytics.class)
 public class GoogleAnalyticsDispatcherTest {
 
+    private static final int WARM_UP_BENCHMARK_RUNS = 50;
+
     @Rule
     public PowerMockRule rule = new PowerMockRule();
     private Context context;
@@ -450,6 +464,360 @@ public class GoogleAnalyticsDispatcherTest {
         Mockito.verify(tracker).send(mapEq(expected));
     }
 
+    @Test
+    public void testFlushPolicyHighPriority() {
+        googleAnalyticsDispatcher.setFlushPolicy(10, 60000);
+
+        TestEventPayload payload = new TestEventPayload(null,
+                null,
+                new Bundle());
+
+        Map<String, String> expectedDisplay = new HashMap<String, String>() {{
+            put("&t", "event"); // Type
+            put("&ea", "batch_notification_display"); // Action
+            put("&ec", "push"); // Category
+            put("&el", "batch"); // Label
+            put("&cs", "batch"); // Campaign Source
+            put("&cm", "push"); // Campaign Medium
+        }};
+
+        Map<String, String> expectedOpen = new HashMap<String, String>() {{
+            put("&t", "event"); // Type
+            put("&ea", "batch_notification_open"); // Action
+            put("&ec", "push"); // Category
+            put("&el", "batch"); // Label
+            put("&cs", "batch"); // Campaign Source
+            put("&cm", "push"); // Campaign Medium
+        }};
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+        Mockito.verify(tracker, Mockito.never()).send(Mockito.<String, String>anyMap());
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        Mockito.verify(tracker).send(mapEq(expectedDisplay));
+        Mockito.verify(tracker).send(mapEq(expectedOpen));
+    }
+
+    @Test
+    public void testFlushPolicyBackground() {
+        ArgumentCaptor<ComponentCallbacks> callbacks = ArgumentCaptor.forClass(ComponentCallbacks.class);
+        Mockito.verify(context).registerComponentCallbacks(callbacks.capture());
+
+        googleAnalyticsDispatcher.setFlushPolicy(10, 60000);
+
+        TestEventPayload payload = new TestEventPayload("jesuisunid",
+                null,
+                new Bundle());
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLOSE, payload);
+        Mockito.verify(tracker, Mockito.never()).send(Mockito.<String, String>anyMap());
+
+        ((ComponentCallbacks2) callbacks.getValue()).onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Mockito.verify(tracker, Mockito.times(2)).send(Mockito.<String, String>anyMap());
+    }
+
+    @Test
+    public void testRelease() {
+        ArgumentCaptor<ComponentCallbacks> callbacks = ArgumentCaptor.forClass(ComponentCallbacks.class);
+        Mockito.verify(context).registerComponentCallbacks(callbacks.capture());
+
+        googleAnalyticsDispatcher.setFlushPolicy(10, 60000);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload("jesuisunid", null, new Bundle()));
+
+        // Buffered hits are sent and the context doesn't keep the dispatcher reachable anymore
+        googleAnalyticsDispatcher.release();
+        Mockito.verify(context).unregisterComponentCallbacks(callbacks.getValue());
+        Mockito.verify(tracker).send(Mockito.<String, String>anyMap());
+    }
+
+    @Test
+    public void testReleaseSendsHitsBuiltByLanes() throws InterruptedException {
+        googleAnalyticsDispatcher.setFlushPolicy(10, 60000);
+        googleAnalyticsDispatcher.setAsyncLanes(1);
+
+        // The lane is still building the hit when release starts
+        final CountDownLatch building = new CountDownLatch(1);
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload("jesuisunid", null, new Bundle()) {
+                    @Override
+                    public String getDeeplink() {
+                        try {
+                            building.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    }
+                });
+        Thread finishBuilding = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                building.countDown();
+            }
+        });
+        finishBuilding.start();
+
+        googleAnalyticsDispatcher.release();
+        Mockito.verify(tracker).send(Mockito.<String, String>anyMap());
+        Assert.assertNull(googleAnalyticsDispatcher.getDispatchExecutor());
+        finishBuilding.join();
+    }
+
+    @Test
+    public void testAsyncLanes() throws InterruptedException {
+        googleAnalyticsDispatcher.setAsyncLanes(2);
+
+        TestEventPayload payload = new TestEventPayload("jesuisunid",
+                null,
+                new Bundle());
+
+        Map<String, String> expected = new HashMap<String, String>() {{
+            put("&t", "event"); // Type
+            put("&ea", "batch_in_app_click"); // Action
+            put("&ec", "in-app"); // Category
+            put("&el", "batch"); // Label
+            put("&cn", "jesuisunid"); // Campaign name
+            put("&cs", "batch"); // Campaign Source
+            put("&cm", "in-app"); // Campaign Medium
+            put("batch_tracking_id", "jesuisunid");
+        }};
+
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload);
+
+        StripedDispatchExecutor executor = googleAnalyticsDispatcher.getDispatchExecutor();
+        googleAnalyticsDispatcher.setAsyncLanes(0);
+        Assert.assertNull(googleAnalyticsDispatcher.getDispatchExecutor());
+        Assert.assertTrue(executor.isShutdown());
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Mockito.verify(tracker).send(mapEq(expected));
+    }
+
+    @Test
+    public void testAsyncLaneFullKeepsOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sentContents = recordSentContents(release);
+        StripedDispatchExecutor executor = new StripedDispatchExecutor(1, 4);
+        googleAnalyticsDispatcher.setDispatchExecutor(executor);
+
+        // The first hit blocks the lane, the next ones fill it and the producer waits for room
+        Thread producer = dispatchInOrder(0, 20);
+        awaitProducerWaits(executor);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertTrue(sentContents.size() <= 1);
+
+        release.countDown();
+        producer.join(5000);
+        googleAnalyticsDispatcher.setDispatchExecutor(null);
+        assertSentInOrder(sentContents, 20);
+    }
+
+    @Test
+    public void testAsyncLanesKeepCampaignOrderAcrossDeeplinks() throws Exception {
+        CountDownLatch release = new CountDownLatch(0);
+        List<String> sentContents = recordSentContents(release);
+        googleAnalyticsDispatcher.setDispatchExecutor(new StripedDispatchExecutor(8, 16));
+
+        // Same campaign, from the query or the fragment of deeplinks that differ by their content
+        for (int i = 0; i < 50; i++) {
+            String deeplink = i % 2 == 0
+                    ? "https://batch.com?utm_campaign=sale&utm_content=" + i
+                    : "https://batch.com#utm_campaign=sale&utm_content=" + i;
+            googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                    new TestEventPayload(null, deeplink, new Bundle()));
+        }
+
+        googleAnalyticsDispatcher.setDispatchExecutor(null);
+        assertSentInOrder(sentContents, 50);
+    }
+
+    @Test
+    public void testAsyncLanesReconfigurationKeepsOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sentContents = recordSentContents(release);
+        final StripedDispatchExecutor executor = new StripedDispatchExecutor(1, 16);
+        googleAnalyticsDispatcher.setDispatchExecutor(executor);
+
+        Thread producer = dispatchInOrder(0, 5);
+        producer.join(5000);
+
+        // Going back to inline dispatching waits for the lanes to drain
+        Thread reconfiguration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                googleAnalyticsDispatcher.setAsyncLanes(0);
+            }
+        });
+        reconfiguration.start();
+        while (!executor.isShutdown()) {
+            Thread.sleep(1);
+        }
+
+        // Events dispatched meanwhile must not overtake the queued ones
+        producer = dispatchInOrder(5, 10);
+        Thread.sleep(50);
+        Assert.assertTrue(sentContents.size() <= 1);
+
+        release.countDown();
+        producer.join(5000);
+        reconfiguration.join(5000);
+        Assert.assertNull(googleAnalyticsDispatcher.getDispatchExecutor());
+        assertSentInOrder(sentContents, 10);
+    }
+
+    /**
+     * Record the campaign content of sent hits, the first send blocks until released
+     */
+    private List<String> recordSentContents(final CountDownLatch release) {
+        final List<String> sentContents = Collections.synchronizedList(new ArrayList<String>());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await(5, TimeUnit.SECONDS);
+                sentContents.add(((Map<String, String>) invocation.getArguments()[0]).get("&cc"));
+                return null;
+            }
+        }).when(tracker).send(Mockito.<String, String>anyMap());
+        return sentContents;
+    }
+
+    /**
+     * Dispatch events of a single campaign from another thread, numbered from first to last (excluded)
+     */
+    private Thread dispatchInOrder(final int first, final int last) {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = first; i < last; i++) {
+                    googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                            new TestEventPayload("jesuisunid", "https://batch.com?utm_content=" + i, new Bundle()));
+                }
+            }
+        });
+        producer.start();
+        return producer;
+    }
+
+    private static void awaitProducerWaits(StripedDispatchExecutor executor) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getWaitCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(executor.getWaitCount() > 0);
+    }
+
+    private static void assertSentInOrder(List<String> sentContents, int count) {
+        Assert.assertEquals(count, sentContents.size());
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(String.valueOf(i), sentContents.get(i));
+        }
+    }
+
+    @Test
+    public void testWarmUp() {
+        int built = googleAnalyticsDispatcher.warmUp();
+        Assert.assertEquals(Batch.EventDispatcher.Type.values().length, built);
+        Mockito.verify(tracker).get("&cid");
+        Mockito.verify(tracker, Mockito.never()).send(Mockito.<String, String>anyMap());
+
+        GoogleAnalyticsDispatcher dispatcher = new GoogleAnalyticsDispatcher(context);
+        Assert.assertEquals(Batch.EventDispatcher.Type.values().length, dispatcher.warmUp());
+    }
+
+    @Test
+    public void testCampaignValueStats() {
+        CampaignValueStats before = googleAnalyticsDispatcher.getValueDictionary().getStats();
+        for (int i = 0; i < 100; i++) {
+            Bundle customPayload = new Bundle();
+            customPayload.putString("utm_campaign", "campaign" + i);
+            googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                    new TestEventPayload(null, null, customPayload));
+        }
+
+        // Only parsed values are counted, the dispatcher literals don't inflate the hit rate
+        CampaignValueStats unique = googleAnalyticsDispatcher.getValueDictionary().getStats();
+        Assert.assertEquals(before.getHitCount(), unique.getHitCount());
+        Assert.assertEquals(before.getMissCount() + 100, unique.getMissCount());
+        Assert.assertEquals(before.getSavedBytes(), unique.getSavedBytes());
+
+        // The tracking id of an in-app event is resolved once, even though it is sent twice
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload(new String("jesuisunid"), null, new Bundle()));
+        googleAnalyticsDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload(new String("jesuisunid"), null, new Bundle()));
+        CampaignValueStats inApp = googleAnalyticsDispatcher.getValueDictionary().getStats();
+        Assert.assertEquals(unique.getHitCount() + 1, inApp.getHitCount());
+        Assert.assertEquals(unique.getMissCount() + 1, inApp.getMissCount());
+    }
+
+    @Test
+    public void testWarmUpDoesNotAffectStats() {
+        CampaignValueStats before = googleAnalyticsDispatcher.getValueDictionary().getStats();
+        googleAnalyticsDispatcher.warmUp();
+        CampaignValueStats after = googleAnalyticsDispatcher.getValueDictionary().getStats();
+
+        // Synthetic hits must not inflate the hit rate or saved bytes of real events
+        Assert.assertEquals(before.getHitCount(), after.getHitCount());
+        Assert.assertEquals(before.getMissCount(), after.getMissCount());
+        Assert.assertEquals(before.getSavedBytes(), after.getSavedBytes());
+        Assert.assertEquals(before.getSize(), after.getSize());
+    }
+
+    @Test
+    public void benchmarkWarmUpFirstEventLatency() {
+        Benchmarks.assumeEnabled();
+        TestEventPayload payload = new TestEventPayload(null,
+                "https://batch.com?utm_source=batchsdk&utm_medium=push-batch&utm_campaign=yoloswag#utm_content=button1",
+                new Bundle());
+
+        // Runs alternate so both sides see the same JIT and class loading state
+        long coldNanos = 0;
+        long warmNanos = 0;
+        for (int run = 0; run < WARM_UP_BENCHMARK_RUNS; run++) {
+            coldNanos += measureFirstEvent(payload, false);
+            warmNanos += measureFirstEvent(payload, true);
+        }
+
+        Benchmarks.report("first notification open without warm up",
+                formatMicros(coldNanos / WARM_UP_BENCHMARK_RUNS) + ", includes tracker creation");
+        Benchmarks.report("first notification open after warm up",
+                formatMicros(warmNanos / WARM_UP_BENCHMARK_RUNS));
+    }
+
+    /**
+     * @return Time from a fresh dispatcher to its first hit sent, in nanoseconds
+     * With warm up, the dispatcher and its tracker are created and warmed before the clock starts,
+     * as warmUp(Context) does at application start.
+     */
+    private long measureFirstEvent(TestEventPayload payload, boolean warmUp) {
+        GoogleAnalyticsDispatcher dispatcher;
+        long start;
+        if (warmUp) {
+            dispatcher = new GoogleAnalyticsDispatcher(context);
+            dispatcher.setTrackingId(0);
+            dispatcher.warmUp();
+            start = System.nanoTime();
+        } else {
+            start = System.nanoTime();
+            dispatcher = new GoogleAnalyticsDispatcher(context);
+            dispatcher.setTrackingId(0);
+        }
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        long elapsed = System.nanoTime() - start;
+        dispatcher.release();
+        return elapsed;
+    }
+
+    private static String formatMicros(long nanos) {
+        return String.format(Locale.US, "%.1f us", nanos / 1000.0);
+    }
+
     private static class TestEventPayload implements Batch.EventDispatcher.Payload {
 
         private String trackingId;
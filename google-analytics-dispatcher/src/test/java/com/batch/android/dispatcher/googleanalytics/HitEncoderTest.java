@@ -0,0 +1,218 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test the streaming Measurement Protocol encoder
+ * Output should match the URLEncoder based encoding of the same hit
+ */
+public class HitEncoderTest {
+
+    private static final int BENCHMARK_HITS = 20000;
+
+    /**
+     * Encoding into a buffer should not allocate, allows for an iterator the JIT didn't eliminate
+     */
+    private static final int MAX_STREAMING_BYTES_PER_HIT = 64;
+
+    @Test
+    public void testEncodeSafeValues() {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("&ea", "batch_notification_open");
+        hit.put("&cs", "batch");
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int written = new HitEncoder().encode(hit, buffer);
+
+        Assert.assertEquals("t=event&ea=batch_notification_open&cs=batch", new String(buffer.array(), 0, written));
+    }
+
+    @Test
+    public void testEncodeMatchesUrlEncoder() throws UnsupportedEncodingException {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("&cs", "[batchsdk]");
+        hit.put("&cn", "soldes d'\u00E9t\u00E9 50% & plus");
+        hit.put("&cc", "emoji \uD83D\uDE80 ~!");
+        hit.put("&cd12", "\u65E5\u672C\u8A9E");
+        hit.put("batch_tracking_id", "a+b=c/d?e");
+        hit.put("&cm", "");
+        hit.put("&el", "lone \uD83D surrogate");
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int written = new HitEncoder().encode(hit, buffer);
+
+        Assert.assertEquals(encodeWithUrlEncoder(hit), new String(buffer.array(), 0, written, "US-ASCII"));
+    }
+
+    @Test
+    public void testEncodeAppendsAtPosition() {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) '>');
+        int written = new HitEncoder().encode(hit, buffer);
+
+        Assert.assertEquals(7, written);
+        Assert.assertEquals(">t=event", new String(buffer.array(), 0, buffer.position()));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testEncodeOverflow() {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&ea", "batch_notification_open");
+        new HitEncoder().encode(hit, ByteBuffer.allocate(8));
+    }
+
+    @Test
+    public void testEncodeStreamGrowsBuffer() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            longValue.append("\u00E9");
+        }
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("&cn", longValue.toString());
+
+        HitEncoder encoder = new HitEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = encoder.encode(hit, out);
+        encoder.encode(hit, out);
+
+        String expected = encodeWithUrlEncoder(hit);
+        Assert.assertEquals(expected.length(), written);
+        Assert.assertEquals(expected + expected, out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("&cn", "soldes d'\u00E9t\u00E9 50% & plus");
+        hit.put("&cc", "a+b=c/d?e");
+        hit.put("&cm", "");
+        hit.put("&cd7", "custom");
+        hit.put("batch_tracking_id", "jesuisunid");
+        hit.put("custom_key", "not a tracker key");
+        hit.put("&&double", "prefix");
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int written = new HitEncoder(true).encode(hit, buffer);
+
+        // Keys come back exactly as they were, prefixed or not
+        Assert.assertEquals(hit, HitEncoder.decode(new String(buffer.array(), 0, written, "US-ASCII")));
+        Assert.assertTrue(HitEncoder.decode("").isEmpty());
+    }
+
+    @Test
+    public void testDecodeMeasurementProtocol() throws Exception {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("batch_tracking_id", "jesuisunid");
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int written = new HitEncoder().encode(hit, buffer);
+
+        // Measurement Protocol parameters don't have the tracker prefix
+        Map<String, String> decoded = HitEncoder.decode(new String(buffer.array(), 0, written, "US-ASCII"));
+        Assert.assertEquals("event", decoded.get("t"));
+        Assert.assertEquals("jesuisunid", decoded.get("batch_tracking_id"));
+    }
+
+    @Test
+    public void testEncodingCost() throws Exception {
+        Map<String, String> hit = new LinkedHashMap<>();
+        hit.put("&t", "event");
+        hit.put("&ea", "batch_notification_open");
+        hit.put("&ec", "push");
+        hit.put("&el", "batch");
+        hit.put("&cs", "batch");
+        hit.put("&cm", "push");
+        hit.put("&cn", "summer-sale_2020");
+        hit.put("&cc", "button 1");
+
+        HitEncoder encoder = new HitEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int streamingBytes = 0;
+        int mapBytes = 0;
+
+        // Warm up both paths before measuring
+        for (int i = 0; i < BENCHMARK_HITS; i++) {
+            buffer.clear();
+            streamingBytes = encoder.encode(hit, buffer);
+            mapBytes = encodeWithUrlEncoder(hit).getBytes("US-ASCII").length;
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < BENCHMARK_HITS; i++) {
+            buffer.clear();
+            encoder.encode(hit, buffer);
+        }
+        long streamingAllocated = getAllocatedBytes() - allocatedBefore;
+
+        allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < BENCHMARK_HITS; i++) {
+            buffer.clear();
+            buffer.put(encodeWithUrlEncoder(hit).getBytes("US-ASCII"));
+        }
+        long mapAllocated = getAllocatedBytes() - allocatedBefore;
+
+        Assert.assertEquals(mapBytes, streamingBytes);
+
+        // Allocation counters are JVM specific
+        Assume.assumeTrue("Thread allocation counter unavailable", allocatedBefore >= 0);
+        Assert.assertTrue("Streaming allocated " + streamingAllocated / BENCHMARK_HITS + " bytes/hit",
+                streamingAllocated / BENCHMARK_HITS <= MAX_STREAMING_BYTES_PER_HIT);
+        Assert.assertTrue(streamingAllocated < mapAllocated);
+    }
+
+    private static String encodeWithUrlEncoder(Map<String, String> hit) throws UnsupportedEncodingException {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : hit.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            String key = entry.getKey().startsWith("&") ? entry.getKey().substring(1) : entry.getKey();
+            builder.append(URLEncoder.encode(key, "UTF-8"));
+            builder.append('=');
+            builder.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return Bytes allocated by the current thread, or -1 if the JVM can't tell
+     */
+    private static long getAllocatedBytes() {
+        // Only available on HotSpot based JVMs, looked up reflectively to avoid depending on com.sun.management
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> allocationBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!allocationBean.isInstance(bean)) {
+                return -1;
+            }
+            Method method = allocationBean.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        } catch (LinkageError e) {
+            return -1;
+        }
+    }
+
+}
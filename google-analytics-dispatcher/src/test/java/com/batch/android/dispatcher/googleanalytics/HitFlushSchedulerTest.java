@@ -0,0 +1,329 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Test the hit flush scheduler with a fake clock
+ * Hits should be flushed on size, age or priority and carry the time they were queued
+ */
+public class HitFlushSchedulerTest {
+
+    private FakeClock clock;
+    private FakeWakeup wakeup;
+    private List<Map<String, String>> sent;
+    private HitFlushScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        wakeup = new FakeWakeup();
+        sent = new ArrayList<>();
+        scheduler = new HitFlushScheduler(3, 1000, clock, wakeup, new HitFlushScheduler.Sink() {
+            @Override
+            public void send(@NonNull Map<String, String> hit) {
+                sent.add(hit);
+            }
+        });
+    }
+
+    @Test
+    public void testSizeThreshold() {
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 100;
+        scheduler.enqueue(hit("2"), false);
+        Assert.assertTrue(sent.isEmpty());
+
+        clock.time += 50;
+        scheduler.enqueue(hit("3"), false);
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(hitTime(10000), sent.get(0).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals(hitTime(10100), sent.get(1).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertNull(sent.get(2).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals(0, scheduler.getPendingCount());
+        Assert.assertNull(wakeup.task);
+    }
+
+    @Test
+    public void testAgeThresholdSingleWakeup() {
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 400;
+        scheduler.enqueue(hit("2"), false);
+        Assert.assertEquals(1, wakeup.scheduleCount);
+        Assert.assertEquals(1000, wakeup.delay);
+
+        clock.time += 600;
+        wakeup.fire();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(hitTime(10000), sent.get(0).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals(hitTime(10400), sent.get(1).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals(1, wakeup.scheduleCount);
+    }
+
+    @Test
+    public void testEarlyWakeupRearms() {
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 300;
+        wakeup.fire();
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertEquals(700, wakeup.delay);
+
+        clock.time += 700;
+        wakeup.fire();
+        Assert.assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void testHighPriority() {
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 20;
+        scheduler.enqueue(hit("2"), true);
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(hitTime(10000), sent.get(0).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals("2", sent.get(1).get("&ea"));
+        Assert.assertNull(wakeup.task);
+    }
+
+    @Test
+    public void testHitTime() {
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 500;
+        scheduler.flush();
+
+        // The tracker computes the queue time from the hit time, setting it here would count the delay twice
+        Map<String, String> sentHit = sent.get(0);
+        Assert.assertEquals(hitTime(10000), sentHit.get(HitFlushScheduler.HIT_TIME));
+        Assert.assertNull(sentHit.get("&qt"));
+        Assert.assertEquals("1", sentHit.get("&ea"));
+        Assert.assertEquals(2, sentHit.size());
+    }
+
+    @Test
+    public void testFlush() {
+        scheduler.flush();
+        Assert.assertTrue(sent.isEmpty());
+
+        scheduler.enqueue(hit("1"), false);
+        scheduler.flush();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertNull(wakeup.task);
+    }
+
+    @Test
+    public void testSpillToJournal() throws IOException {
+        File journalFile = File.createTempFile("pending_hits", null);
+        Assert.assertTrue(journalFile.delete());
+        FakeExecutor journalExecutor = new FakeExecutor();
+        scheduler = createJournaledScheduler(new HitJournal(journalFile), journalExecutor);
+
+        scheduler.enqueue(hit("1"), false);
+        scheduler.enqueue(hit("2"), false);
+        clock.time += 10;
+        scheduler.enqueue(hit("3"), false);
+        long hitBytes = scheduler.getFootprintBytes() / 3;
+
+        // Keep only the most recent hit in memory, the others are written in a single batch off this thread
+        scheduler.shrink(hitBytes);
+        Assert.assertEquals(1, scheduler.getPendingCount());
+        Assert.assertEquals(hitBytes, scheduler.getFootprintBytes());
+        Assert.assertFalse(journalFile.exists());
+        Assert.assertEquals(1, journalExecutor.runAll());
+        Assert.assertTrue(journalFile.exists());
+
+        scheduler.shrink(0);
+        Assert.assertEquals(0, scheduler.getPendingCount());
+        Assert.assertEquals(0, scheduler.getFootprintBytes());
+        Assert.assertNull(wakeup.task);
+        Assert.assertEquals(1, journalExecutor.runAll());
+        Assert.assertTrue(sent.isEmpty());
+
+        // Spilled hits are not read back by a regular enqueue
+        clock.time += 40;
+        scheduler.enqueue(hit("4"), false);
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertEquals(0, journalExecutor.runAll());
+
+        // They are read back on the journal executor with the next flush, and sent in order with their time
+        scheduler.flush();
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertEquals(1, journalExecutor.runAll());
+        Assert.assertEquals(4, sent.size());
+        Assert.assertEquals("1", sent.get(0).get("&ea"));
+        Assert.assertEquals(hitTime(10000), sent.get(0).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals("3", sent.get(2).get("&ea"));
+        Assert.assertEquals(hitTime(10010), sent.get(2).get(HitFlushScheduler.HIT_TIME));
+        Assert.assertEquals("4", sent.get(3).get("&ea"));
+        Assert.assertFalse(journalFile.exists());
+
+        // Nothing left in the journal, the next flushes stay on the caller thread
+        scheduler.enqueue(hit("5"), false);
+        scheduler.flush();
+        Assert.assertEquals(5, sent.size());
+        Assert.assertEquals(0, journalExecutor.runAll());
+    }
+
+    @Test
+    public void testSpilledHitsExpire() throws IOException {
+        File journalFile = File.createTempFile("pending_hits", null);
+        Assert.assertTrue(journalFile.delete());
+        FakeExecutor journalExecutor = new FakeExecutor();
+        scheduler = createJournaledScheduler(new HitJournal(journalFile), journalExecutor);
+
+        scheduler.enqueue(hit("1"), false);
+        clock.time += 1000;
+        scheduler.enqueue(hit("2"), false);
+        scheduler.shrink(0);
+
+        // Google Analytics would drop the first hit
+        clock.time += HitJournal.MAX_QUEUE_TIME_MILLIS;
+        scheduler.flush();
+        journalExecutor.runAll();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("2", sent.get(0).get("&ea"));
+        Assert.assertFalse(journalFile.exists());
+    }
+
+    @Test
+    public void testSpillFailureKeepsHits() throws IOException {
+        File directory = File.createTempFile("pending_hits", null);
+        Assert.assertTrue(directory.delete());
+        FakeExecutor journalExecutor = new FakeExecutor();
+        scheduler = createJournaledScheduler(new HitJournal(new File(directory, "missing")), journalExecutor);
+
+        scheduler.enqueue(hit("1"), false);
+        scheduler.enqueue(hit("2"), false);
+        long footprint = scheduler.getFootprintBytes();
+        scheduler.shrink(0);
+        scheduler.enqueue(hit("3"), false);
+        Assert.assertEquals(1, scheduler.getPendingCount());
+
+        // The write failed, hits are back ahead of the newer one
+        journalExecutor.runAll();
+        Assert.assertEquals(3, scheduler.getPendingCount());
+        Assert.assertTrue(scheduler.getFootprintBytes() > footprint);
+        scheduler.flush();
+        journalExecutor.runAll();
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals("1", sent.get(0).get("&ea"));
+        Assert.assertEquals("3", sent.get(2).get("&ea"));
+    }
+
+    @Test
+    public void testJournalKeptOnReadFailure() throws IOException {
+        File journalFile = File.createTempFile("pending_hits", null);
+        Assert.assertTrue(journalFile.delete());
+        // Opening a directory as a file fails
+        Assert.assertTrue(journalFile.mkdir());
+
+        HitJournal journal = new HitJournal(journalFile);
+        Assert.assertTrue(journal.drain(clock.currentTimeMillis()).isEmpty());
+        Assert.assertTrue(journalFile.exists());
+        Assert.assertTrue(journalFile.delete());
+    }
+
+    @Test
+    public void testShrinkWithoutJournalKeepsHits() {
+        scheduler.enqueue(hit("1"), false);
+        long footprint = scheduler.getFootprintBytes();
+        Assert.assertTrue(footprint > 0);
+
+        scheduler.shrink(0);
+        Assert.assertEquals(1, scheduler.getPendingCount());
+        Assert.assertEquals(footprint, scheduler.getFootprintBytes());
+    }
+
+    private HitFlushScheduler createJournaledScheduler(HitJournal journal, Executor journalExecutor) {
+        return new HitFlushScheduler(10, 1000, clock, wakeup, journal, journalExecutor, new HitFlushScheduler.Sink() {
+            @Override
+            public void send(@NonNull Map<String, String> hit) {
+                sent.add(hit);
+            }
+        });
+    }
+
+    private static Map<String, String> hit(String action) {
+        Map<String, String> hit = new HashMap<>();
+        hit.put("&ea", action);
+        return hit;
+    }
+
+    private static String hitTime(long time) {
+        return String.valueOf(FakeClock.WALL_CLOCK_OFFSET + time);
+    }
+
+    private static class FakeClock implements HitFlushScheduler.Clock {
+
+        static final long WALL_CLOCK_OFFSET = 1600000000000L;
+
+        long time = 10000;
+
+        @Override
+        public long now() {
+            return time;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return WALL_CLOCK_OFFSET + time;
+        }
+    }
+
+    private static class FakeExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            tasks.add(task);
+        }
+
+        /**
+         * @return Number of tasks run
+         */
+        int runAll() {
+            int count = 0;
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static class FakeWakeup implements HitFlushScheduler.Wakeup {
+
+        Runnable task;
+        long delay;
+        int scheduleCount;
+
+        @Override
+        public void schedule(@NonNull Runnable task, long delayMillis) {
+            this.task = task;
+            this.delay = delayMillis;
+            this.scheduleCount++;
+        }
+
+        @Override
+        public void cancel(@NonNull Runnable task) {
+            this.task = null;
+        }
+
+        void fire() {
+            Runnable toRun = task;
+            task = null;
+            toRun.run();
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package com.batch.android.dispatcher.googleanalytics;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the striped dispatch executor
+ * Tasks sharing a key should run in order, other keys in parallel, on bounded lanes
+ */
+public class StripedDispatchExecutorTest {
+
+    private StripedDispatchExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        executor = new StripedDispatchExecutor(4, 100000);
+        final int keys = 32;
+        final int tasksPerKey = 1000;
+        final Map<String, List<Integer>> results = new HashMap<>();
+        for (int k = 0; k < keys; k++) {
+            results.put("campaign" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final String key = "campaign" + k;
+                final int index = i;
+                Assert.assertTrue(executor.submit(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        results.get(key).add(index);
+                    }
+                }));
+            }
+        }
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (List<Integer> result : results.values()) {
+            Assert.assertEquals(tasksPerKey, result.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                Assert.assertEquals(i, (int) result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testKeysRunInParallel() throws Exception {
+        executor = new StripedDispatchExecutor(2, 16);
+        String[] keys = keysOnDistinctLanes();
+        final CountDownLatch otherLaneRan = new CountDownLatch(1);
+        final CountDownLatch blockedLaneDone = new CountDownLatch(1);
+
+        executor.submit(keys[0], new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Only completes if the other lane is not blocked behind this task
+                    if (otherLaneRan.await(5, TimeUnit.SECONDS)) {
+                        blockedLaneDone.countDown();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        executor.submit(keys[1], new Runnable() {
+            @Override
+            public void run() {
+                otherLaneRan.countDown();
+            }
+        });
+
+        Assert.assertTrue(blockedLaneDone.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnkeyedTasksSpreadOverLanes() {
+        executor = new StripedDispatchExecutor(4, 16);
+        Set<Integer> lanes = new HashSet<>();
+        for (int i = 0; i < executor.getLaneCount(); i++) {
+            lanes.add(executor.laneIndex(null));
+        }
+        // Tasks without a key don't pile up on a single lane
+        Assert.assertEquals(executor.getLaneCount(), lanes.size());
+    }
+
+    @Test
+    public void testBoundedLaneAndDepths() throws Exception {
+        executor = new StripedDispatchExecutor(2, 3);
+        final String[] keys = keysOnDistinctLanes();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        Assert.assertTrue(executor.submit(keys[0], blocking));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.submit(keys[0], noop));
+        Assert.assertTrue(executor.submit(keys[0], noop));
+        Assert.assertTrue(executor.submit(keys[0], noop));
+        Assert.assertEquals(0, executor.getWaitCount());
+
+        int lane = executor.laneIndex(keys[0]);
+        Assert.assertEquals(3, executor.getLaneDepths()[lane]);
+        Assert.assertEquals(0, executor.getLaneDepths()[1 - lane]);
+
+        // The lane is full, the next task waits for room
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.submit(keys[0], noop);
+            }
+        });
+        producer.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getWaitCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(executor.getWaitCount() > 0);
+        Assert.assertEquals(3, executor.getLaneDepths()[lane]);
+
+        // Other lanes are not affected by a full lane
+        Assert.assertTrue(executor.submit(keys[1], noop));
+
+        release.countDown();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, executor.getLaneDepths()[lane]);
+        Assert.assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void testSubmitWaitsForRoomInOrder() throws Exception {
+        executor = new StripedDispatchExecutor(2, 4);
+        final String key = "campaign";
+        final int tasks = 100;
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+
+        // Block the lane so the producer fills it and has to wait
+        Assert.assertTrue(executor.submit(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }));
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < tasks; i++) {
+                    final int index = i;
+                    executor.submit(key, new Runnable() {
+                        @Override
+                        public void run() {
+                            result.add(index);
+                        }
+                    });
+                }
+            }
+        });
+        producer.start();
+
+        // The producer waits on the full lane instead of running tasks itself
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getWaitCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(executor.getWaitCount() > 0);
+        Assert.assertTrue(result.isEmpty());
+        Assert.assertTrue(producer.isAlive());
+
+        release.countDown();
+        producer.join(5000);
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, executor.getRejectedCount());
+        Assert.assertEquals(tasks, result.size());
+        for (int i = 0; i < tasks; i++) {
+            Assert.assertEquals(i, (int) result.get(i));
+        }
+    }
+
+    @Test
+    public void testShutdownReleasesWaitingProducers() throws Exception {
+        executor = new StripedDispatchExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        Assert.assertTrue(executor.submit("campaign", blocking));
+        // Fill the only slot once the blocking task started
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.submit("campaign", blocking));
+
+        final AtomicInteger submitted = new AtomicInteger(-1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                submitted.set(executor.submit("campaign", new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }) ? 1 : 0);
+            }
+        });
+        producer.start();
+        while (executor.getWaitCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        executor.shutdown();
+        producer.join(5000);
+        Assert.assertEquals(0, submitted.get());
+        release.countDown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownDrainsAcceptedTasks() throws Exception {
+        executor = new StripedDispatchExecutor(3, 1000);
+        final AtomicInteger ran = new AtomicInteger();
+        Runnable counting = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < 500; i++) {
+            Assert.assertTrue(executor.submit("campaign" + i, counting));
+        }
+        executor.shutdown();
+        Assert.assertFalse(executor.submit("campaign", counting));
+        Assert.assertEquals(1, executor.getRejectedCount());
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(500, ran.get());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopLane() throws Exception {
+        executor = new StripedDispatchExecutor(1, 16);
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.submit("campaign", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        });
+        executor.submit("campaign", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    private String[] keysOnDistinctLanes() {
+        String first = "campaign0";
+        for (int i = 1; i < 100; i++) {
+            String candidate = "campaign" + i;
+            if (executor.laneIndex(candidate) != executor.laneIndex(first)) {
+                return new String[]{first, candidate};
+            }
+        }
+        throw new IllegalStateException("No keys on distinct lanes");
+    }
+
+}